@@ -0,0 +1,50 @@
+// All the information contained in this source code file is a property of Outcome Professional Services Limited,
+// a company registered in the United Kingdom. Use and distribution of any part of the information 
+// contained in this source code file without our prior consent is forbidden. If you have an interest 
+// in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
+package pro.outcome.data;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// Hands out numbers using the hi/lo algorithm: blocks of numbers are reserved in the datastore
+// and handed out from memory without locking. When a block runs out, one thread reserves the
+// next one and the others wait for it. Unused numbers in a block are lost when it is discarded.
+abstract class BlockAllocator {
+
+	// INSTANCE:
+	private volatile Block _block;
+
+	protected BlockAllocator() {
+		// Blocks are reserved on first use:
+		_block = new Block(0, 0);
+	}
+
+	public long next() {
+		while(true) {
+			Block block = _block;
+			long value = block._next.getAndIncrement();
+			if(value < block._end) {
+				return value;
+			}
+			synchronized(this) {
+				if(_block == block) {
+					_block = reserve();
+				}
+			}
+		}
+	}
+
+	// Reserves the next block of numbers:
+	protected abstract Block reserve();
+
+	// Numbers from start (inclusive) to end (exclusive):
+	static class Block {
+		private final AtomicLong _next;
+		private final long _end;
+
+		public Block(long start, long end) {
+			_next = new AtomicLong(start);
+			_end = end;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+// All the information contained in this source code file is a property of Outcome Professional Services Limited,
+// a company registered in the United Kingdom. Use and distribution of any part of the information 
+// contained in this source code file without our prior consent is forbidden. If you have an interest 
+// in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
+package pro.outcome.data;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.CompositeFilter;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+import pro.outcome.util.Strings;
+import static pro.outcome.util.Shortcuts.*;
+
+
+// Runs a query through its entity's query cache. Only the ids of the results are cached,
+// and instances are loaded by id, so that they come from the identity map, the entity
+// cache or a batch get. Cached ids are keyed by the current write version of the entity,
+// which is read before the query runs, so that concurrent writes invalidate the result.
+class CachedQuery<I extends Instance<?>> {
+
+	// TYPE:
+	// For Query and CompiledQuery:
+	// Normalizes the query, so that the order of the filters does not matter:
+	static String normalize(Entity<?> entity, List<Filter> filters, List<SortPredicate> sorts, int limit, String position) {
+		List<String> normalized = new ArrayList<>(filters.size());
+		for(Filter f : filters) {
+			normalized.add(_encode(f));
+		}
+		Collections.sort(normalized);
+		StringBuilder sb = new StringBuilder(entity.getName());
+		sb.append('|').append(normalized.size());
+		for(String f : normalized) {
+			sb.append('|').append(UniqueIndex.encode(f));
+		}
+		sb.append('|').append(sorts.size());
+		for(SortPredicate sort : sorts) {
+			sb.append('|').append(UniqueIndex.encode(sort.getPropertyName())).append(sort.getDirection());
+		}
+		sb.append('|').append(limit);
+		sb.append('|').append(UniqueIndex.encode(position));
+		return sb.toString();
+	}
+
+	// Encodes filters with the exact type and value of their arguments. Filter.toString is not
+	// suitable, since e.g. dates only show seconds and strings are not told apart from numbers.
+	private static String _encode(Filter f) {
+		if(f instanceof FilterPredicate) {
+			FilterPredicate p = (FilterPredicate)f;
+			StringBuilder sb = new StringBuilder(UniqueIndex.encode(p.getPropertyName()));
+			sb.append(p.getOperator().name());
+			if(p.getValue() instanceof Collection) {
+				Collection<?> values = (Collection<?>)p.getValue();
+				sb.append('C').append(values.size());
+				for(Object value : values) {
+					sb.append('|').append(UniqueIndex.encode(value));
+				}
+			}
+			else {
+				sb.append('|').append(UniqueIndex.encode(p.getValue()));
+			}
+			return sb.toString();
+		}
+		CompositeFilter c = (CompositeFilter)f;
+		List<String> normalized = new ArrayList<>(c.getSubFilters().size());
+		for(Filter sub : c.getSubFilters()) {
+			normalized.add(_encode(sub));
+		}
+		Collections.sort(normalized);
+		StringBuilder sb = new StringBuilder(c.getOperator().name()).append(normalized.size());
+		for(String sub : normalized) {
+			sb.append('|').append(UniqueIndex.encode(sub));
+		}
+		return sb.toString();
+	}
+
+	// INSTANCE:
+	private final Entity<I> _entity;
+	private final QueryCache _cache;
+	private final String _normalized;
+	private final PreparedQuery _keysOnly;
+	private final FetchOptions _options;
+	private long[] _ids;
+
+	// For Query:
+	CachedQuery(Entity<I> entity, QueryCache cache, String normalized, PreparedQuery keysOnly, FetchOptions options) {
+		_entity = entity;
+		_cache = cache;
+		_normalized = normalized;
+		_keysOnly = keysOnly;
+		_options = options;
+		_ids = null;
+	}
+
+	public long[] getIds() {
+		if(_ids == null) {
+			long version = _cache.getVersion(_entity.getName());
+			String key = _entity.getName() + '|' + version + '|' + Strings.toSha1(_normalized);
+			_ids = _cache.get(key);
+			if(_ids == null) {
+				_entity.getLogger().log(info("query cache miss: {}", _normalized));
+				_ids = QueryResult.toIds(_keysOnly, _options);
+				_cache.put(key, _ids);
+			}
+		}
+		return _ids;
+	}
+
+	// Loads the results in query order. Results that have been deleted since are skipped:
+	public List<I> getInstances() {
+		long[] ids = getIds();
+		if(ids.length == 0) {
+			return Collections.emptyList();
+		}
+		Map<Long,I> found = _entity.find(ids);
+		List<I> instances = new ArrayList<>(ids.length);
+		for(long id : ids) {
+			I i = found.get(id);
+			if(i != null) {
+				instances.add(i);
+			}
+		}
+		return instances;
+	}
+}
@@ -0,0 +1,162 @@
+// All the information contained in this source code file is a property of Outcome Professional Services Limited,
+// a company registered in the United Kingdom. Use and distribution of any part of the information 
+// contained in this source code file without our prior consent is forbidden. If you have an interest 
+// in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
+package pro.outcome.data;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import pro.outcome.util.IntegrityException;
+import static pro.outcome.util.Shortcuts.*;
+
+
+// Deletes instances together with their dependencies in batches. The dependency graph is
+// walked one level at a time: for every entity in a level, related rows are found with
+// keys-only IN queries (one per MAX_IN_VALUES parent ids), RESTRICT dependencies are probed
+// for a single related row, and SET_NULL dependencies are loaded and cleared in memory.
+// Cleared rows are then persisted through their entity's updateAll, like any other update.
+// Nothing is written until the whole graph has been planned, so a RESTRICT violation
+// anywhere in the graph leaves the datastore untouched.
+class CascadePlan {
+
+	private static final Logger _logger = Logger.getLogger(CascadePlan.class.getName());
+	private final List<Map<Entity<?>,Set<Key>>> _levels;
+	private final Set<Key> _deleted;
+	private final Map<Key,Instance<?>> _updates;
+	private final Map<Key,Entity<?>> _updatedEntities;
+
+	public CascadePlan(Entity<?> root, Collection<Key> keys) {
+		_levels = new ArrayList<>();
+		_deleted = new HashSet<>();
+		_updates = new LinkedHashMap<>();
+		_updatedEntities = new LinkedHashMap<>();
+		Map<Entity<?>,Set<Key>> level = new LinkedHashMap<>();
+		level.put(root, new LinkedHashSet<>(keys));
+		_deleted.addAll(keys);
+		while(!level.isEmpty()) {
+			_levels.add(level);
+			level = _planLevel(level);
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void execute() {
+		// Clear foreign keys first, skipping rows that will be deleted anyway:
+		Map<Entity<?>,List<Instance<?>>> updates = new LinkedHashMap<>();
+		for(Map.Entry<Key,Instance<?>> entry : _updates.entrySet()) {
+			if(_deleted.contains(entry.getKey())) {
+				continue;
+			}
+			Entity<?> entity = _updatedEntities.get(entry.getKey());
+			List<Instance<?>> list = updates.get(entity);
+			if(list == null) {
+				list = new ArrayList<>();
+				updates.put(entity, list);
+			}
+			list.add(entry.getValue());
+		}
+		for(Map.Entry<Entity<?>,List<Instance<?>>> entry : updates.entrySet()) {
+			List<Instance<?>> list = entry.getValue();
+			_logger.log(info("setting foreign keys to null on {} {} instance(s)", list.size(), entry.getKey().getInstanceName()));
+			// Updates bump versions, timestamps and unique index entries, and refresh the caches:
+			Entity entity = entry.getKey();
+			entity.updateAll(list);
+		}
+		// Delete the deepest levels first, so that no rows are left orphan if a delete fails:
+		for(int i=_levels.size()-1; i>=0; i--) {
+			for(Map.Entry<Entity<?>,Set<Key>> entry : _levels.get(i).entrySet()) {
+				List<Key> keys = new ArrayList<>(entry.getValue());
+				_logger.log(info("running query: DELETE FROM {} WHERE id IN ({} ids)", entry.getKey().getName(), keys.size()));
+				for(int from=0; from<keys.size(); from+=Entity.MAX_BATCH_DELETE) {
+					entry.getKey().getDatastoreService().delete(keys.subList(from, Math.min(from+Entity.MAX_BATCH_DELETE, keys.size())));
+				}
+				entry.getKey().forget(keys);
+			}
+		}
+	}
+
+	public int getDeleteCount() {
+		return _deleted.size();
+	}
+
+	public int getUpdateCount() {
+		int count = 0;
+		for(Key key : _updates.keySet()) {
+			if(!_deleted.contains(key)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Map<Entity<?>,Set<Key>> _planLevel(Map<Entity<?>,Set<Key>> level) {
+		Map<Entity<?>,Set<Key>> next = new LinkedHashMap<>();
+		for(Map.Entry<Entity<?>,Set<Key>> entry : level.entrySet()) {
+			Entity<?> parent = entry.getKey();
+			for(Dependency d : parent.getDependencies()) {
+				Property<?> fk = d.getForeignKey();
+				Entity<Instance<?>> child = d.getEntity();
+				_logger.log(info("found dependency in {}", child.getName()));
+				Iterator<Key> it = entry.getValue().iterator();
+				List<Long> ids = new ArrayList<>(QueryArg.MAX_IN_VALUES);
+				while(it.hasNext()) {
+					ids.add(it.next().getId());
+					if(ids.size() == QueryArg.MAX_IN_VALUES || !it.hasNext()) {
+						QueryArg arg = new QueryArg(fk, new ArrayList<>(ids), QueryArg.Operator.IN);
+						ids.clear();
+						if(fk.getOnDeleteAction() == Property.OnDelete.RESTRICT) {
+							if(!new Query<Instance<?>>(child).addWhere(arg).prepareKeysOnly().asList(FetchOptions.Builder.withLimit(1)).isEmpty()) {
+								// TODO onDeleteException??
+								throw new RuntimeException(x("{} cannot be deleted because there is a related {}", parent.getInstanceName(), child.getInstanceName()));
+							}
+						}
+						else if(fk.getOnDeleteAction() == Property.OnDelete.CASCADE) {
+							for(com.google.appengine.api.datastore.Entity e : new Query<Instance<?>>(child).addWhere(arg).prepareKeysOnly().asIterable(FetchOptions.Builder.withChunkSize(Entity.MAX_BATCH_GET))) {
+								if(_deleted.add(e.getKey())) {
+									Set<Key> keys = next.get(child);
+									if(keys == null) {
+										keys = new LinkedHashSet<>();
+										next.put(child, keys);
+									}
+									keys.add(e.getKey());
+								}
+							}
+						}
+						else if(fk.getOnDeleteAction() == Property.OnDelete.SET_NULL) {
+							if(fk.isMandatory()) {
+								throw new MandatoryConstraintException(fk);
+							}
+							Iterator<Instance<?>> related = new Query<Instance<?>>(child).addWhere(arg).run().iterate();
+							while(related.hasNext()) {
+								Instance<?> i = related.next();
+								Key key = i.getGoogleEntity().getKey();
+								// The same row may already be planned through another foreign key:
+								Instance<?> planned = _updates.get(key);
+								if(planned != null) {
+									i = planned;
+								}
+								((Instance)i).setValue(fk, null);
+								_updates.put(key, i);
+								_updatedEntities.put(key, child);
+							}
+						}
+						else {
+							throw new IntegrityException(fk.getOnDeleteAction());
+						}
+					}
+				}
+			}
+		}
+		return next;
+	}
+}
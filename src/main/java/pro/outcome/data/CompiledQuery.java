@@ -0,0 +1,114 @@
+// All the information contained in this source code file is a property of Outcome Professional Services Limited,
+// a company registered in the United Kingdom. Use and distribution of any part of the information 
+// contained in this source code file without our prior consent is forbidden. If you have an interest 
+// in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
+package pro.outcome.data;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+import pro.outcome.util.Checker;
+import static pro.outcome.util.Shortcuts.*;
+
+
+// Immutable form of a query, created with Query.compile. Arguments and sort orders are
+// validated and filters are built once, when the query is compiled, so compiled queries
+// can be kept in static fields and run concurrently. Each run binds the parameters to
+// the given values and prepares a new datastore query.
+public final class CompiledQuery<I extends Instance<?>> {
+
+	private final Entity<I> _entity;
+	// Filters of arguments without parameters. Elements are null for parameters:
+	private final List<Filter> _filters;
+	// Arguments with parameters, in the order their values are bound:
+	private final List<QueryArg> _params;
+	private final int[] _paramIndexes;
+	private final List<SortPredicate> _sorts;
+	private final Property<?>[] _projection;
+	private final Property<?>[] _includes;
+	private final int _limit;
+	private final int _fetchSize;
+	private final boolean _savePosition;
+	private final QueryCache _queryCache;
+
+	// For Query:
+	CompiledQuery(Entity<I> entity, List<QueryArg> args, List<SortPredicate> sorts, Property<?>[] projection, Property<?>[] includes, int limit, int fetchSize, boolean savePosition, QueryCache queryCache) {
+		_entity = entity;
+		List<Filter> filters = new ArrayList<>(args.size());
+		List<QueryArg> params = new ArrayList<>();
+		_paramIndexes = new int[args.size()];
+		for(QueryArg arg : args) {
+			if(arg.isParameter()) {
+				_paramIndexes[params.size()] = filters.size();
+				params.add(arg);
+				filters.add(null);
+			}
+			else {
+				filters.add(arg.toFilter());
+			}
+		}
+		_filters = Collections.unmodifiableList(filters);
+		_params = Collections.unmodifiableList(params);
+		_sorts = Collections.unmodifiableList(new ArrayList<>(sorts));
+		_projection = projection == null ? null : projection.clone();
+		_includes = includes == null ? null : includes.clone();
+		_limit = limit;
+		_fetchSize = fetchSize;
+		_savePosition = savePosition;
+		_queryCache = queryCache;
+	}
+
+	public int getParameterCount() {
+		return _params.size();
+	}
+
+	// Runs the query with the given parameter values, in the order the parameters were added:
+	public QueryResult<I> run(Object ... values) {
+		return runFrom(null, values);
+	}
+
+	// Runs the query from a position returned by a previous run:
+	public QueryResult<I> runFrom(String position, Object ... values) {
+		Checker.checkNull(values);
+		if(values.length != _params.size()) {
+			throw new IllegalArgumentException(x("query has {} parameters, found {} values", _params.size(), values.length));
+		}
+		List<Filter> filters = new ArrayList<>(_filters);
+		for(int j=0; j<values.length; j++) {
+			filters.set(_paramIndexes[j], _params.get(j).bind(values[j]).toFilter());
+		}
+		com.google.appengine.api.datastore.Query q = _newQuery(filters);
+		if(_projection != null) {
+			for(Property<?> p : _projection) {
+				q.addProjection(new PropertyProjection(p.getName(), p.getPrimitiveType()));
+			}
+		}
+		PreparedQuery pq = _entity.getDatastoreService().prepare(null, q);
+		PreparedQuery async = _entity.getAsyncDatastoreService().prepare(null, q);
+		PreparedQuery keysOnly = _entity.getDatastoreService().prepare(null, _newQuery(filters).setKeysOnly());
+		FetchOptions options = Query.getFetchOptions(_fetchSize, _limit, position);
+		_entity.getLogger().log(info("running compiled query: {}", pq));
+		CachedQuery<I> cached = null;
+		if(_queryCache != null && _projection == null && !_savePosition) {
+			String normalized = CachedQuery.normalize(_entity, filters, _sorts, _limit, position);
+			cached = new CachedQuery<I>(_entity, _queryCache, normalized, keysOnly, options);
+		}
+		return new QueryResult<I>(_entity.getInstanceClass(), pq, async, keysOnly, options, _savePosition, _projection, _includes, cached);
+	}
+
+	private com.google.appengine.api.datastore.Query _newQuery(List<Filter> filters) {
+		com.google.appengine.api.datastore.Query q = new com.google.appengine.api.datastore.Query(_entity.getName());
+		Filter f = Query.and(filters);
+		if(f != null) {
+			q.setFilter(f);
+		}
+		for(SortPredicate sort : _sorts) {
+			q.addSort(sort.getPropertyName(), sort.getDirection());
+		}
+		return q;
+	}
+}
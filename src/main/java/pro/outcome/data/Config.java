@@ -3,6 +3,7 @@
 // contained in this source code file without our prior consent is forbidden. If you have an interest 
 // in using any part of this source code in your software, please contact us on listening@connector.im.
 package pro.outcome.data;
+import java.util.Collection;
 import java.util.Map;
 import java.util.HashMap;
 import pro.outcome.data.Property.Constraint;
@@ -67,8 +68,28 @@ public class Config extends Entity<ConfigValue> {
 		return super.save(value);
 	}
 	
+	public void insertAll(Collection<ConfigValue> values) {
+		_cache.clear();
+		super.insertAll(values);
+	}
+
+	public int updateAll(Collection<ConfigValue> values) {
+		_cache.clear();
+		return super.updateAll(values);
+	}
+
+	public int saveAll(Collection<ConfigValue> values) {
+		_cache.clear();
+		return super.saveAll(values);
+	}
+
 	public void delete(ConfigValue value) {
 		_cache.clear();
 		super.delete(value);
 	}
+
+	public void deleteAll(Collection<ConfigValue> values) {
+		_cache.clear();
+		super.deleteAll(values);
+	}
 }
@@ -3,6 +3,13 @@
 // contained in this source code file without our prior consent is forbidden. If you have an interest 
 // in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
 package pro.outcome.data;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import pro.outcome.util.Checker;
 
 
 public class Dependency {
@@ -31,4 +38,29 @@ public class Dependency {
 	public QueryResult<Instance<?>> findInstancesRelatedTo(Instance<?> i) {
 		return _entity.findWhere(new QueryArg(_foreignKey, i, QueryArg.Operator.EQUAL));
 	}
+
+	// Finds the instances related to each of the parents, with one IN query per chunk of
+	// MAX_IN_VALUES parents. Queries run in parallel. Returns the related instances grouped
+	// by parent id, in the order of the parents, with empty lists for parents without any.
+	public Map<Long,List<Instance<?>>> findInstancesRelatedTo(Collection<? extends Instance<?>> parents) {
+		Checker.checkNull(parents);
+		Map<Long,List<Instance<?>>> result = new LinkedHashMap<>();
+		for(Instance<?> parent : parents) {
+			Checker.checkNull(parent);
+			result.put((Long)_foreignKey.toPrimitive(parent), new ArrayList<Instance<?>>());
+		}
+		List<Long> ids = new ArrayList<>(result.keySet());
+		List<Future<List<Instance<?>>>> queries = new ArrayList<>();
+		for(int from=0; from<ids.size(); from+=QueryArg.MAX_IN_VALUES) {
+			List<Long> chunk = ids.subList(from, Math.min(from+QueryArg.MAX_IN_VALUES, ids.size()));
+			Query<Instance<?>> q = new Query<>(_entity).addWhere(new QueryArg(_foreignKey, new ArrayList<>(chunk), QueryArg.Operator.IN));
+			queries.add(q.runAsync());
+		}
+		for(Future<List<Instance<?>>> f : queries) {
+			for(Instance<?> child : Entity.waitFor(f)) {
+				result.get(child.getPrimitiveValue(_foreignKey)).add(child);
+			}
+		}
+		return result;
+	}
 }
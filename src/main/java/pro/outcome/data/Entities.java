@@ -5,6 +5,12 @@
 package pro.outcome.data;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collection;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import pro.outcome.util.Checker;
 import pro.outcome.util.ImmutableMap;
 import pro.outcome.util.IntegrityException;
@@ -52,6 +58,48 @@ public abstract class Entities {
 	public static ImmutableMap<String,Entity<? extends Instance<?>>> getEntities() {
 		return new ImmutableMap<String,Entity<? extends Instance<?>>>(_byName);
 	}
+
+	// Inserts new instances of several entities, e.g. parents along with their children, in a
+	// single batched put. Instances referenced by others in the batch need reserved ids (see
+	// Entity.reserveIds). Entities with unique values or natural key ids check them first, so
+	// their instances are inserted separately, before the batch.
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static void insertAll(Collection<? extends Instance<?>> instances) {
+		Checker.checkNull(instances);
+		Map<Entity<?>,List<Instance<?>>> byEntity = new LinkedHashMap<>();
+		for(Instance<?> i : instances) {
+			Checker.checkNull(i);
+			List<Instance<?>> list = byEntity.get(i.getEntity());
+			if(list == null) {
+				list = new ArrayList<>();
+				byEntity.put(i.getEntity(), list);
+			}
+			list.add(i);
+		}
+		Map<Entity,List> batched = new LinkedHashMap<>();
+		for(Map.Entry<Entity<?>,List<Instance<?>>> entry : byEntity.entrySet()) {
+			Entity entity = entry.getKey();
+			if(entity.prepareBatchInsert(entry.getValue())) {
+				batched.put(entity, entry.getValue());
+			}
+			else {
+				entity.insertAll(entry.getValue());
+			}
+		}
+		List<com.google.appengine.api.datastore.Entity> entities = new ArrayList<>(instances.size());
+		for(List list : batched.values()) {
+			for(Instance<?> i : (List<Instance<?>>)list) {
+				entities.add(i.getGoogleEntity());
+			}
+		}
+		DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+		for(int from=0; from<entities.size(); from+=Entity.MAX_BATCH_PUT) {
+			ds.put(entities.subList(from, Math.min(from+Entity.MAX_BATCH_PUT, entities.size())));
+		}
+		for(Map.Entry<Entity,List> entry : batched.entrySet()) {
+			entry.getKey().afterPut(entry.getValue());
+		}
+	}
 		
 	static {
 		load();
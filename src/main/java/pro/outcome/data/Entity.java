@@ -4,7 +4,6 @@
 // in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
 package pro.outcome.data;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.Date;
 import java.util.HashMap;
@@ -12,37 +11,149 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.ConcurrentModificationException;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.lang.reflect.ParameterizedType;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.KeyRange;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.QueryResultList;
 import pro.outcome.util.Checker;
+import pro.outcome.util.Strings;
 import pro.outcome.util.ImmutableMap;
 import pro.outcome.util.ImmutableList;
 import pro.outcome.util.IntegrityException;
 import pro.outcome.util.IllegalUsageException;
 import pro.outcome.data.Property.Constraint;
-import pro.outcome.data.Property.OnDelete;
 import static pro.outcome.util.Shortcuts.*;
 
 
 public abstract class Entity<I extends Instance<?>> {
 
+	// TYPE:
+	// Maximum number of entities the datastore accepts on a single put:
+	public static final int MAX_BATCH_PUT = 500;
+	// Maximum number of keys the datastore accepts on a single delete:
+	public static final int MAX_BATCH_DELETE = 500;
+	// Maximum number of keys the datastore accepts on a single get:
+	public static final int MAX_BATCH_GET = 1000;
+	// Number of ids reserved at a time for instances that need them before they are persisted:
+	public static final int ID_BLOCK_SIZE = 100;
+	// Attempts and initial backoff for transactions that fail due to contention:
+	public static final int TRANSACTION_RETRIES = 5;
+	public static final long TRANSACTION_BACKOFF_MILLIS = 50;
+	private static final Logger _txnLogger = Logger.getLogger(Entity.class.getName());
+
+	// Runs the work in a cross-group transaction, which is committed when the work returns and
+	// rolled back when it throws. If the commit fails due to contention, the work runs again
+	// after an exponential backoff, so it must retrieve the instances it updates by itself.
+	// Work can span up to 25 entity groups. Instances are retrieved from the datastore rather
+	// than from caches, and queries run outside of the transaction.
+	// Nested calls join the transaction started by the outermost call.
+	public static <T> T transact(final Callable<T> work) {
+		Checker.checkNull(work);
+		if(TransactionContext.getCurrent() != null) {
+			return _call(work);
+		}
+		return retry(new Callable<T>() {
+			public T call() {
+				TransactionContext ctx = TransactionContext.begin();
+				try {
+					T result = _call(work);
+					ctx.commit();
+					return result;
+				}
+				finally {
+					ctx.end();
+				}
+			}
+		});
+	}
+
+	// For Self, UniqueIndex, Generators and ShardedCounter:
+	// Runs an attempt that commits its own transaction until it succeeds without contention,
+	// i.e. without a ConcurrentModificationException, up to TRANSACTION_RETRIES times.
+	static <T> T retry(Callable<T> attempt) {
+		long backoff = TRANSACTION_BACKOFF_MILLIS;
+		for(int n=1; ; n++) {
+			try {
+				return _call(attempt);
+			}
+			catch(ConcurrentModificationException cme) {
+				if(n == TRANSACTION_RETRIES) {
+					throw cme;
+				}
+				_txnLogger.log(info("retrying transaction after contention (attempt {})", n));
+			}
+			try {
+				// Add jitter, so that competing requests don't retry in lockstep:
+				Thread.sleep(backoff + (long)(Math.random()*backoff));
+			}
+			catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("interrupted while retrying a transaction", ie);
+			}
+			backoff *= 2;
+		}
+	}
+
+	private static <T> T _call(Callable<T> work) {
+		try {
+			return work.call();
+		}
+		catch(RuntimeException re) {
+			throw re;
+		}
+		catch(Exception e) {
+			throw new IntegrityException(e);
+		}
+	}
+
+	// INSTANCE:
 	// Data structure properties:
 	public final Property<Long> id;
 	public final Property<Date> timeCreated;
 	public final Property<Date> timeUpdated;
 	private final Class<I> _instanceType;
 	private final Map<String,Property<?>> _properties;
+	private final ImmutableMap<String,Property<?>> _propertiesView;
+	// Properties indexed by ordinal, in the order they were added:
+	private Property<?>[] _schema;
+	// Properties validated and flushed on insert (all but the id), computed on load:
+	private Property<?>[] _insertPlan;
+	// Ordinals of the properties whose updates change unique index entries, computed on load:
+	private BitSet _updatePlan;
+	// Incremented on every update, or null if the entity is not versioned:
+	private Property<Long> _version;
 	private final List<Dependency> _dependencies;
 	private final Set<UniqueConstraint> _uConstraints;
 	private boolean _naturalKeyAdded;
 	// Data management properties:
 	private final DatastoreService _ds;
+	private final AsyncDatastoreService _ads;
 	private final Logger _logger;
+	private EntityCache _cache;
+	private QueryCache _queryCache;
+	private boolean _naturalKeyIds;
+	private UniqueIndex<I> _uniqueIndex;
+	// Ids reserved with allocateIds and not handed out yet:
+	private final BlockAllocator _ids;
 	private boolean _loaded;
 
 	@SuppressWarnings("unchecked")
@@ -50,6 +161,11 @@ public abstract class Entity<I extends Instance<?>> {
 		// Data structure:
 		_instanceType = ((Class<I>)((ParameterizedType)getClass().getGenericSuperclass()).getActualTypeArguments()[0]);
 		_properties = new HashMap<>();
+		_propertiesView = new ImmutableMap<String,Property<?>>(_properties);
+		_schema = new Property<?>[0];
+		_insertPlan = null;
+		_updatePlan = null;
+		_version = null;
 		_dependencies = new ArrayList<>();
 		_uConstraints = new HashSet<>();
 		_naturalKeyAdded = false;
@@ -59,7 +175,19 @@ public abstract class Entity<I extends Instance<?>> {
 		timeUpdated = addProperty(Date.class, "timeUpdated", true, new Generators.Now(), Constraint.MANDATORY, Constraint.READ_ONLY);		
 		// Data management:
 		_ds = DatastoreServiceFactory.getDatastoreService();
+		_ads = DatastoreServiceFactory.getAsyncDatastoreService();
 		_logger = Logger.getLogger(getClass().getName());
+		_cache = null;
+		_queryCache = null;
+		_naturalKeyIds = false;
+		_uniqueIndex = null;
+		_ids = new BlockAllocator() {
+			protected Block reserve() {
+				KeyRange range = _ds.allocateIds(getName(), ID_BLOCK_SIZE);
+				getLogger().log(info("reserved {} id(s) for {}", ID_BLOCK_SIZE, getName()));
+				return new Block(range.getStart().getId(), range.getEnd().getId()+1);
+			}
+		};
 		_loaded = false;
 		// Register this object:
 		Entities.register(this);
@@ -85,7 +213,17 @@ public abstract class Entity<I extends Instance<?>> {
 	}
 	
 	public ImmutableMap<String,Property<?>> getProperties() {
-		return new ImmutableMap<String,Property<?>>(_properties);
+		return _propertiesView;
+	}
+
+	public int getPropertyCount() {
+		return _schema.length;
+	}
+
+	public Property<?> getProperty(int ordinal) {
+		Checker.checkIndex(ordinal);
+		Checker.checkMaxValue(ordinal, _schema.length-1);
+		return _schema[ordinal];
 	}
 
 	public ImmutableList<Dependency> getDependencies() {
@@ -108,6 +246,22 @@ public abstract class Entity<I extends Instance<?>> {
 		return _addProperty(c, name, true, null, onDelete, constraints);
 	}
 
+	// Adds a version property that is set to 1 on insert and incremented on every update, so
+	// that concurrent updates can be detected (see updateInTransaction). Subclasses keep the
+	// returned property in a public field, like the properties added with addProperty.
+	protected Property<Long> addVersionProperty() {
+		if(_version != null) {
+			throw new IllegalUsageException(x("entity {} already has a version property", getName()));
+		}
+		_version = _addProperty(Long.class, "version", false, new Generators.Direct<Long>(1L), null, Constraint.MANDATORY, Constraint.READ_ONLY);
+		return _version;
+	}
+
+	public Property<Long> getVersionProperty() {
+		return _version;
+	}
+
+	// Enforced like UNIQUE properties, including the migration of existing rows (see Property.Constraint):
 	protected void addUniqueConstraint(Property<?> ... props) {
 		_addNaturalKeyConstraint();
 		if(props == null || props.length==0) {
@@ -133,167 +287,590 @@ public abstract class Entity<I extends Instance<?>> {
 	// Data management methods:
 	public void insert(I i) {
 		Checker.checkNull(i);
+		insertAll(Collections.singletonList(i));
+	}
+
+	public void insertAll(Collection<I> instances) {
+		Checker.checkNull(instances);
 		_checkLoaded();
-		if(i.isPersisted()) {
-			throw new IllegalArgumentException("entity has already been persisted");
+		List<I> batch = new ArrayList<>(instances);
+		for(I i : batch) {
+			Checker.checkNull(i);
+			_prepareInsert(i);
 		}
-		// Get a snapshot of updates to check constraints:
-		Set<Property<?>> updatedProps = i.getUpdatedProperties();
-    	// Validate constraints:
-		// Note: the following constraints are already validated on Instance.setValue:
-		// Data type, format, read-only, auto-generated. Mandatory is also validated
-		// on Instance.setValue, but we need to check for omitted properties.
-		for(Property<?> prop : getProperties().values()) {
-			// Skip the primary key:
-			if(prop == id) {
+		getLogger().log(info("inserting {} {} instance(s)", batch.size(), getInstanceName()));
+		// Inserts are not deferred, and may reuse unique values of deferred deletes:
+		UnitOfWork uow = _getUnitOfWork();
+		if(uow != null && (!_uniqueIndex.isEmpty() || _naturalKeyIds)) {
+			uow.flushDeletes(this);
+		}
+		if(!_naturalKeyIds) {
+			// Unique constraints are validated for the whole batch when writing:
+			_putAll(batch, null);
+		}
+		else {
+			_insertWithNaturalKeyIds(batch);
+		}
+		getLogger().log(info("persisted {} {} instance(s)", batch.size(), getInstanceName()));
+	}
+
+	// Returns true if the instance had updates. When a unit of work is active, the update is only
+	// queued: versions and unique values are checked on UnitOfWork.commit, which is also where
+	// their exceptions are thrown.
+	public boolean update(I i) {
+		Checker.checkNull(i);
+		return updateAll(Collections.singletonList(i)) == 1;
+	}
+
+	// Returns the number of instances that had updates and were persisted (or deferred,
+	// when a unit of work is active):
+	public int updateAll(Collection<I> instances) {
+		Checker.checkNull(instances);
+		_checkLoaded();
+		List<I> batch = new ArrayList<>(instances.size());
+		List<Set<Key>> previous = new ArrayList<>(instances.size());
+		UnitOfWork uow = _getUnitOfWork();
+		int deferred = 0;
+		for(I i : instances) {
+			Checker.checkNull(i);
+			_checkPersisted(i);
+			if(i.isProjection()) {
+				throw new IllegalArgumentException("instances retrieved by projection queries cannot be updated");
+			}
+			if(!i.hasUpdates()) {
 				continue;
 			}
-			Object value = i.getValue(prop);
-			// Automatically generate:
-			if(prop.isAutoGenerated()) {
-				// TODO add generators
-				throw new IntegrityException();
+			// Updates are deferred until the unit of work is committed, and the instance
+			// keeps collecting them until then:
+			if(uow != null) {
+				uow.update(this, i);
+				deferred++;
+				continue;
 			}
-			// Default value:
-			if(value == null) {
-				Object def = prop.getDefaultValue();
-				if(def != null) {
-					value = def;
-				}
+			// Get a snapshot of unique values, so that the ones that change can be released.
+			// Instances whose unique values are not updated don't need one:
+			if(i.hasUpdates(_updatePlan)) {
+				previous.add(new HashSet<>(_uniqueIndex.getKeys(i.getGoogleEntity()).keySet()));
 			}
-			// Mandatory:
-			if(prop.isMandatory()) {
-				if(value == null) {
-					throw new MandatoryConstraintException(prop);
-				}
+			else {
+				previous.add(null);
 			}
-			// Unique:
-			if(prop.isUnique() && value != null) {
-				// If the property is auto-generated, we already checked for uniqueness above.
-				if(!prop.isAutoGenerated()) {
-					_checkUnique(i, prop, value, true);
-				}
+			// On update, we only need to validate unique constraints.
+			// All others are validated on Instance.setValue.
+			i.flushUpdates();
+			i.flush(timeUpdated, new Date());
+			if(_version != null) {
+				// Rows persisted before the entity was versioned don't have a version yet:
+				Long version = (Long)i.getGoogleEntity().getProperty(_version.getName());
+				i.flush(_version, version == null ? 1L : version+1);
 			}
-			// All okay, set the value. Note that we will lose some updates in case
-			// one property validation fails after others have been validated successfully.
-			// However, because this is an unrecoverable exception, we don't care about that.
-			i.flush(prop, value);
+			batch.add(i);
 		}
-		_checkUniqueConstraints(i, true, updatedProps);
-		getLogger().log(info("inserting instance [{}]", i));
-		_put(i);
-		getLogger().log(info("persisted with id {}", i.getId()));
+		if(batch.isEmpty()) {
+			return deferred;
+		}
+		getLogger().log(info("updating {} {} instance(s)", batch.size(), getInstanceName()));
+		_putAll(batch, previous);
+		return batch.size();
 	}
 
-	public boolean update(I i) {
+	public boolean save(I i) {
+		Checker.checkNull(i);
+		return saveAll(Collections.singletonList(i)) == 1;
+	}
+
+	// Inserts instances that do not exist yet and updates the ones that do, matching
+	// them by natural key. Returns the number of instances inserted or updated.
+	public int saveAll(Collection<I> instances) {
+		return _saveAll(instances, false);
+	}
+
+	// Updates the instance in a transaction, provided that it has not been updated by anyone
+	// else since it was retrieved. Throws StaleInstanceException otherwise, in which case the
+	// instance needs to be retrieved again. The entity needs to have a version property.
+	public boolean updateInTransaction(final I i) {
 		Checker.checkNull(i);
+		_checkVersioned();
+		return _runInTransaction(new Callable<Boolean>() {
+			public Boolean call() {
+				_checkVersions(Collections.singletonList(i));
+				return update(i);
+			}
+		});
+	}
+
+	// Saves the instance in a transaction. If an instance with the same natural key exists, it
+	// is only updated if it has not changed since it was found (see updateInTransaction).
+	public boolean saveInTransaction(final I i) {
+		Checker.checkNull(i);
+		_checkVersioned();
+		return _runInTransaction(new Callable<Boolean>() {
+			public Boolean call() {
+				return _saveAll(Collections.singletonList(i), true) == 1;
+			}
+		});
+	}
+
+	private int _saveAll(Collection<I> instances, boolean checkVersions) {
+		Checker.checkNull(instances);
 		_checkLoaded();
-		_checkPersisted(i);
-		if(!i.hasUpdates()) {
-			return false;
+		// Find existing instances by natural key, which is checked before any instance is processed:
+		Property<?>[] naturalKey = getNaturalKeyProperties();
+		if(naturalKey == null) {
+			throw new NullPointerException(x("entity {} has no natural key", getName()));
 		}
-		// Get a snapshot of updates to check constraints:
-		Set<Property<?>> updatedProps = i.getUpdatedProperties();
-		// Check updated properties:
-		for(Entry<Property<?>, Object> entry : i.getUpdates()) {
-			Property<?> prop = entry.getKey();
-			Object value = entry.getValue();
-			// On update, we only need to validate unique constraints.
-			// All others are validated on Instance.setValue.
-			if(prop.isUnique() && value != null) {
-				_checkUnique(i, prop, value, false);
+		if(naturalKey.length == 0) {
+			throw new IllegalArgumentException(x("entity {} has an empty natural key", getName()));
+		}
+		List<List<Object>> tuples = new ArrayList<>(instances.size());
+		for(I i : instances) {
+			Checker.checkNull(i);
+			Object[] values = new Object[naturalKey.length];
+			for(int j=0; j<naturalKey.length; j++) {
+				values[j] = i.getPrimitiveValue(naturalKey[j]);
 			}
-			i.flush(prop, value);
+			tuples.add(_getTuple(values));
 		}
-		_checkUniqueConstraints(i, false, updatedProps);
-		i.flush(timeUpdated, new Date());
-		getLogger().log(info("updating instance [{}]", i));
-		_put(i);
-		return true;
+		Map<List<Object>,List<I>> existing = _naturalKeyIds ? _findExistingById(naturalKey, new HashSet<>(tuples)) : _findExisting(naturalKey, new HashSet<>(tuples));
+		// Split into inserts and updates:
+		// Note: we can't key a map by unpersisted instances, because they are all equal.
+		List<I> inserts = new ArrayList<>();
+		List<I> updated = new ArrayList<>();
+		List<I> matched = new ArrayList<>();
+		int index = 0;
+		for(I i : instances) {
+			List<I> matches = existing.get(tuples.get(index++));
+			if(matches == null) {
+				inserts.add(i);
+				continue;
+			}
+			if(matches.size() > 1) {
+				throw new IllegalStateException(x("expected 1 result, found {}", matches.size()));
+			}
+			I match = matches.get(0);
+			match.updateFrom(i);
+			updated.add(i);
+			matched.add(match);
+		}
+		if(checkVersions) {
+			_checkVersions(matched);
+		}
+		if(!inserts.isEmpty()) {
+			insertAll(inserts);
+		}
+		int count = updateAll(matched);
+		// We need to do this to carry over the primary key:
+		for(int j=0; j<updated.size(); j++) {
+			updated.get(j).setGoogleEntity(matched.get(j).getGoogleEntity());
+			updated.get(j).setPersisted();
+		}
+		return inserts.size() + count;
 	}
 
-	public boolean save(I i) {
-		Checker.checkNull(i);
+	// Gives new instances complete keys before they are persisted, so that other new instances can
+	// reference them and both can be written in the same batch (see Entities.insertAll). Ids are
+	// handed out from blocks reserved with allocateIds, except for natural key ids, which are
+	// derived from the natural key values. Instances that already have an id are skipped.
+	public void reserveIds(Collection<I> instances) {
+		Checker.checkNull(instances);
 		_checkLoaded();
-		I existing = findSingle(i.getNaturalKeyAsArg());
-		if(existing == null) {
-			insert(i);
-			return true;
+		List<I> pending = new ArrayList<>(instances.size());
+		for(I i : instances) {
+			Checker.checkNull(i);
+			if(!i.hasId()) {
+				pending.add(i);
+			}
 		}
-		existing.updateFrom(i);
-		boolean updated = update(existing);
-		if(!updated) {
-			// We need to do this to carry over the primary key:
-			i.setGoogleEntity(existing.getGoogleEntity());
+		Iterator<Key> it = null;
+		if(!_naturalKeyIds) {
+			it = allocateKeys(pending.size()).iterator();
 		}
-		return updated;
+		Property<?>[] naturalKey = getNaturalKeyProperties();
+		for(I i : pending) {
+			if(!_naturalKeyIds) {
+				i.setKey(it.next());
+				continue;
+			}
+			// Natural key values have not been flushed yet:
+			Object[] values = new Object[naturalKey.length];
+			for(int j=0; j<naturalKey.length; j++) {
+				values[j] = i.getPrimitiveValue(naturalKey[j]);
+			}
+			i.setKey(KeyFactory.createKey(getName(), getNaturalKeyId(_getTuple(values))));
+		}
+	}
+
+	public void reserveId(I i) {
+		Checker.checkNull(i);
+		reserveIds(Collections.singletonList(i));
+	}
+
+	// For Self and UniqueIndex:
+	// Returns complete keys for new instances. Small requests are served from the block of ids
+	// cached by this entity, large ones are allocated in a single call.
+	List<Key> allocateKeys(int count) {
+		List<Key> keys = new ArrayList<>(count);
+		if(count >= ID_BLOCK_SIZE) {
+			for(Key key : _ds.allocateIds(getName(), count)) {
+				keys.add(key);
+			}
+			return keys;
+		}
+		while(keys.size() < count) {
+			keys.add(KeyFactory.createKey(getName(), _ids.next()));
+		}
+		return keys;
 	}
 
 	public void delete(I i) {
 		Checker.checkNull(i);
+		deleteAll(Collections.singletonList(i));
+	}
+
+	// Deletes the instances and processes their dependencies in batches (see CascadePlan):
+	public void deleteAll(Collection<I> instances) {
+		Checker.checkNull(instances);
 		_checkLoaded();
-		_checkPersisted(i);
-		getLogger().log(info("deleting {} with id {}", getInstanceName(), i.getId()));
-		// Process dependencies:
-		for(Dependency d : _dependencies) {
-			getLogger().log(info("found dependency in {}", d.getEntity().getName()));
-			Iterator<Instance<?>> it = d.findInstancesRelatedTo(i).iterate();
-			while(it.hasNext()) {
-				Instance<?> related = it.next();
-				OnDelete onDeleteAction = d.getForeignKey().getOnDeleteAction();
-				if(onDeleteAction == Property.OnDelete.CASCADE) {
-					d.getEntity().delete(related);
-				}
-				else if(onDeleteAction == Property.OnDelete.RESTRICT) {
-					// TODO onDeleteException??
-					throw new RuntimeException(x("{} cannot be deleted because there is a related {}", related.getEntity().getInstanceName(), getInstanceName()));
-				}
-				else if(onDeleteAction == Property.OnDelete.SET_NULL) {
-					related.setValue(d.getForeignKey(), null);
-					d.getEntity().update(related);
-				}
-				else {
-					throw new IntegrityException(onDeleteAction);
-				}
+		for(I i : instances) {
+			Checker.checkNull(i);
+			_checkPersisted(i);
+		}
+		// Deletes are deferred until the unit of work is committed:
+		UnitOfWork uow = _getUnitOfWork();
+		if(uow != null) {
+			for(I i : instances) {
+				uow.delete(this, i);
+			}
+			return;
+		}
+		executeDelete(planDelete(instances), instances);
+	}
+
+	// For Self and UnitOfWork:
+	// Finds the related rows that need to be updated or deleted along with the instances:
+	CascadePlan planDelete(Collection<I> instances) {
+		List<Key> keys = new ArrayList<>(instances.size());
+		for(I i : instances) {
+			keys.add(i.getGoogleEntity().getKey());
+		}
+		getLogger().log(info("deleting {} {} instance(s)", keys.size(), getInstanceName()));
+		return new CascadePlan(this, keys);
+	}
+
+	// For Self and UnitOfWork:
+	void executeDelete(CascadePlan plan, Collection<I> instances) {
+		plan.execute();
+		// Related rows deleted by the plan release their unique values lazily (see UniqueIndex):
+		List<com.google.appengine.api.datastore.Entity> entities = new ArrayList<>(instances.size());
+		for(I i : instances) {
+			// Projections don't hold all unique values, their entries are reclaimed lazily:
+			if(!i.isProjection()) {
+				entities.add(i.getGoogleEntity());
 			}
 		}
-		// Delete the instance:
-		getLogger().log(info("running query: DELETE FROM {} WHERE id = {}", getName(), i.getId()));
-		_ds.delete(i.getGoogleEntity().getKey());
+		_uniqueIndex.release(entities);
+		getLogger().log(info("deleted {} instance(s) and updated {} related instance(s)", plan.getDeleteCount(), plan.getUpdateCount()));
+	}
+
+	public void deleteWhere(QueryArg ... args) {
+		deleteWhere(1, args);
 	}
 
-	public void deleteWhere(QueryArg ... params) {
+	// Deletes with up to "parallelism" batch deletes in flight while the next chunk of keys is fetched:
+	public void deleteWhere(int parallelism, QueryArg ... args) {
+		deleteWhere(null, 0, parallelism, args);
+	}
+
+	// Deletes matching instances in chunks of MAX_BATCH_DELETE keys, using a keys-only query so that
+	// memory usage is constant. Deletion starts at the given position (null for the beginning) and
+	// stops after maxChunks chunks (0 for no limit). Returns the position to resume from, or null
+	// if there are no more instances to delete.
+	// Note: dependencies are not processed, as rows are never loaded.
+	public String deleteWhere(String position, int maxChunks, int parallelism, QueryArg ... args) {
+		Checker.checkMinValue(maxChunks, 0);
+		Checker.checkMinValue(parallelism, 1);
+		Checker.checkNullElements(args);
 		_checkLoaded();
-		getLogger().log(info("running query: DELETE FROM {} WHERE {}", getName(), params));
-		// TODO use Query().setKeysOnly for better performance
-		_ds.delete(_getKeysFrom(new Query<I>(this).addWhere(params).run().iterate()));
+		getLogger().log(info("running query: DELETE FROM {} WHERE {}", getName(), args));
+		PreparedQuery pq = new Query<I>(this).addWhere(args).prepareKeysOnly();
+		getLogger().log(info("running keys-only query: {}", pq));
+		Cursor cursor = position == null ? null : Cursor.fromWebSafeString(position);
+		List<Future<Void>> inFlight = new ArrayList<>(parallelism);
+		int chunks = 0;
+		long deleted = 0;
+		while(maxChunks == 0 || chunks < maxChunks) {
+			FetchOptions options = FetchOptions.Builder.withLimit(MAX_BATCH_DELETE).chunkSize(MAX_BATCH_DELETE);
+			if(cursor != null) {
+				options.startCursor(cursor);
+			}
+			QueryResultList<com.google.appengine.api.datastore.Entity> list = pq.asQueryResultList(options);
+			List<Key> keys = new ArrayList<>(list.size());
+			for(com.google.appengine.api.datastore.Entity e : list) {
+				keys.add(e.getKey());
+			}
+			cursor = list.size() < MAX_BATCH_DELETE ? null : list.getCursor();
+			if(!keys.isEmpty()) {
+				// Wait for a free slot:
+				if(inFlight.size() == parallelism) {
+					waitFor(inFlight.remove(0));
+				}
+				inFlight.add(_ads.delete(keys));
+				forget(keys);
+				deleted += keys.size();
+				chunks++;
+			}
+			if(cursor == null) {
+				break;
+			}
+		}
+		for(Future<Void> f : inFlight) {
+			waitFor(f);
+		}
+		getLogger().log(info("deleted {} {} instance(s) in {} chunk(s)", deleted, getInstanceName(), chunks));
+		return cursor == null ? null : cursor.toWebSafeString();
 	}
 	
 	public void deleteAll() {
 		deleteWhere();
 	}
 
+	// Reserves unique index entries for all persisted instances. This is required once for
+	// entities with rows persisted before unique values were enforced through the index, and
+	// recommended for new entities: until it has run, values without an index entry are also
+	// checked with a query on every write, as they were before the index existed.
+	public void rebuildUniqueIndex() {
+		_checkLoaded();
+		if(_uniqueIndex.isEmpty()) {
+			return;
+		}
+		getLogger().log(info("rebuilding unique index for {}", getName()));
+		List<com.google.appengine.api.datastore.Entity> chunk = new ArrayList<>(MAX_BATCH_PUT);
+		Iterator<I> it = new Query<I>(this).setFetchSize(MAX_BATCH_PUT).run().iterate();
+		int conflicts = 0;
+		while(it.hasNext()) {
+			chunk.add(it.next().getGoogleEntity());
+			if(chunk.size() == MAX_BATCH_PUT || !it.hasNext()) {
+				conflicts += _uniqueIndex.rebuild(chunk);
+				chunk.clear();
+			}
+		}
+		if(conflicts > 0) {
+			getLogger().log(warn("found {} unique constraint violation(s) in {}", conflicts, getName()));
+		}
+		_uniqueIndex.markRebuilt();
+	}
+
 	public I find(Long id) {
 		Checker.checkNull(id);
 		Checker.checkMinValue(id, 1L);
 		_checkLoaded();
-		// TODO cache entities already retrieved by ID. This would seriously improve performance,
-		// especially when retrieving foreign entities 
-		try {
-			getLogger().log(info("running query: SELECT * FROM {} WHERE id = {}", getName(), id));
-			com.google.appengine.api.datastore.Entity e = _ds.get(KeyFactory.createKey(getName(), id));
-			getLogger().log(info(e == null ? "{} not found" : "{} found", getInstanceName()));
-			return _createSafely(e);
+		Key key = KeyFactory.createKey(getName(), id);
+		// Check if the instance has already been retrieved in this request:
+		IdentityMap map = _getIdentityMap();
+		if(map != null && map.contains(key)) {
+			getLogger().log(info("{} with id {} found in identity map", getInstanceName(), id));
+			@SuppressWarnings("unchecked")
+			I i = (I)map.get(key);
+			return i;
 		}
-		catch(EntityNotFoundException enfe) {
-			return null;
+		I i = _createSafely(_get(key));
+		if(map != null) {
+			map.put(key, i);
 		}
+		return i;
 	}
 	
+	// Retrieves several instances by id, issuing one batch get for every MAX_BATCH_GET ids that
+	// are not in the identity map or cache. The result follows the order of the ids, and omits ids
+	// that were not found.
+	public Map<Long,I> find(Collection<Long> ids) {
+		Checker.checkNull(ids);
+		_checkLoaded();
+		Map<Key,Long> keys = new LinkedHashMap<>();
+		for(Long id : ids) {
+			Checker.checkNull(id);
+			Checker.checkMinValue(id, 1L);
+			keys.put(KeyFactory.createKey(getName(), id), id);
+		}
+		Map<Key,I> found = new HashMap<>();
+		List<Key> pending = new ArrayList<>();
+		// Check which instances have already been retrieved in this request:
+		IdentityMap map = _getIdentityMap();
+		for(Key key : keys.keySet()) {
+			if(map != null && map.contains(key)) {
+				@SuppressWarnings("unchecked")
+				I i = (I)map.get(key);
+				found.put(key, i);
+			}
+			else {
+				pending.add(key);
+			}
+		}
+		if(!pending.isEmpty()) {
+			for(Map.Entry<Key,com.google.appengine.api.datastore.Entity> entry : _getAll(pending).entrySet()) {
+				I i = _createSafely(entry.getValue());
+				if(map != null) {
+					map.put(entry.getKey(), i);
+				}
+				found.put(entry.getKey(), i);
+			}
+		}
+		Map<Long,I> result = new LinkedHashMap<>();
+		for(Map.Entry<Key,Long> entry : keys.entrySet()) {
+			I i = found.get(entry.getKey());
+			if(i != null) {
+				result.put(entry.getValue(), i);
+			}
+		}
+		return result;
+	}
+
+	public Map<Long,I> find(long ... ids) {
+		Checker.checkNull(ids);
+		List<Long> list = new ArrayList<>(ids.length);
+		for(long id : ids) {
+			list.add(id);
+		}
+		return find(list);
+	}
+
+	// Starts retrieving an instance by id. The identity map and cache are checked straight away,
+	// and the datastore is only waited for when the result is requested.
+	public Future<I> findAsync(Long id) {
+		Checker.checkNull(id);
+		Checker.checkMinValue(id, 1L);
+		_checkLoaded();
+		final Key key = KeyFactory.createKey(getName(), id);
+		final IdentityMap map = _getIdentityMap();
+		if(map != null && map.contains(key)) {
+			@SuppressWarnings("unchecked")
+			I i = (I)map.get(key);
+			return FutureAdapter.done(i);
+		}
+		final EntityCache cache = _getReadCache();
+		if(cache != null) {
+			Map<Key,com.google.appengine.api.datastore.Entity> cached = cache.getAll(Collections.singleton(key));
+			if(cached.containsKey(key)) {
+				I i = _createSafely(cached.get(key));
+				if(map != null) {
+					map.put(key, i);
+				}
+				return FutureAdapter.done(i);
+			}
+		}
+		final Object load = cache == null ? null : cache.startLoad(Collections.singleton(key));
+		getLogger().log(info("running async query: SELECT * FROM {} WHERE id = {}", getName(), id));
+		return new FutureAdapter<com.google.appengine.api.datastore.Entity,I>(_ads.get(key)) {
+			protected I convert(com.google.appengine.api.datastore.Entity e) {
+				return _found(key, e);
+			}
+			protected I convert(ExecutionException ee) throws ExecutionException {
+				if(ee.getCause() instanceof EntityNotFoundException) {
+					return _found(key, null);
+				}
+				throw ee;
+			}
+			private I _found(Key key, com.google.appengine.api.datastore.Entity e) {
+				if(cache != null) {
+					cache.finishLoad(load, Collections.singletonMap(key, e));
+				}
+				I i = _createSafely(e);
+				if(map != null) {
+					map.put(key, i);
+				}
+				return i;
+			}
+		};
+	}
+
+	// Validates the instance and starts persisting it, returning the instance once it has been
+	// persisted. Entities with unique values or natural key ids check for existing values
+	// synchronously, so their instances are persisted before this method returns. Otherwise,
+	// the instance gets its id and is marked as persisted as soon as the put is issued, so the
+	// future does not need to be read. Reading it reports failures, in which case the instance
+	// is dropped from the caches and must not be used again.
+	public Future<I> insertAsync(final I i) {
+		Checker.checkNull(i);
+		_checkLoaded();
+		if(!_uniqueIndex.isEmpty() || _naturalKeyIds) {
+			insert(i);
+			return FutureAdapter.done(i);
+		}
+		_prepareInsert(i);
+		// The key is allocated up front, so that the instance can be persisted without reading the future:
+		if(!i.getGoogleEntity().getKey().isComplete()) {
+			com.google.appengine.api.datastore.Entity e = new com.google.appengine.api.datastore.Entity(allocateKeys(1).get(0));
+			e.setPropertiesFrom(i.getGoogleEntity());
+			i.setGoogleEntity(e);
+		}
+		final Key key = i.getGoogleEntity().getKey();
+		getLogger().log(info("inserting {} instance asynchronously", getInstanceName()));
+		Future<Key> put = _ads.put(i.getGoogleEntity());
+		afterPut(Collections.singletonList(i));
+		return new FutureAdapter<Key,I>(put) {
+			protected I convert(Key k) {
+				return i;
+			}
+			protected I convert(ExecutionException ee) throws ExecutionException {
+				// The row was not written:
+				forget(Collections.singletonList(key));
+				throw ee;
+			}
+		};
+	}
+
+	// Starts deleting the instance. Instances with dependencies are deleted synchronously,
+	// because the dependency graph needs to be queried first (see CascadePlan).
+	public Future<Void> deleteAsync(I i) {
+		Checker.checkNull(i);
+		_checkLoaded();
+		_checkPersisted(i);
+		if(!_dependencies.isEmpty()) {
+			delete(i);
+			return FutureAdapter.done(null);
+		}
+		final Key key = i.getGoogleEntity().getKey();
+		List<Key> keys = new ArrayList<>();
+		if(!i.isProjection()) {
+			keys.addAll(_uniqueIndex.getKeys(i.getGoogleEntity()).keySet());
+		}
+		keys.add(key);
+		getLogger().log(info("deleting {} with id {} asynchronously", getInstanceName(), i.getId()));
+		Future<Void> delete = _ads.delete(keys);
+		// Forget the instance now, since the future may never be read:
+		forget(Collections.singletonList(key));
+		return delete;
+	}
+
+	// Finds the instance with the given natural key values, in the order of getNaturalKeyProperties.
+	// With natural key ids this is a direct get, otherwise it is a query.
+	public I findByNaturalKey(Object ... values) {
+		Checker.checkNull(values);
+		_checkLoaded();
+		Property<?>[] props = getNaturalKeyProperties();
+		if(values.length != props.length) {
+			throw new IllegalArgumentException(x("natural key has {} properties, found {} values", props.length, values.length));
+		}
+		QueryArg[] args = new QueryArg[props.length];
+		for(int j=0; j<props.length; j++) {
+			args[j] = new QueryArg(props[j], values[j], QueryArg.Operator.EQUAL);
+		}
+		return findSingle(args);
+	}
+
 	public I findSingle(QueryArg ... args) {
 		Checker.checkEmpty(args);
 		Checker.checkNullElements(args);
 		_checkLoaded();
+		// Natural keys map to a single key when ids are derived from them:
+		if(_naturalKeyIds) {
+			List<Object> tuple = _getNaturalKeyTuple(args);
+			if(tuple != null) {
+				I i = find(getNaturalKeyId(tuple));
+				// Rule out hash collisions:
+				return i != null && _getTuple(i, getNaturalKeyProperties()).equals(tuple) ? i : null;
+			}
+		}
 		// Check if id is an argument:
 		QueryArg idArg = null;
 		for(QueryArg arg : args) {
@@ -350,13 +927,59 @@ public abstract class Entity<I extends Instance<?>> {
 		return findWhere();
 	}
 
+	public EntityCache getCache() {
+		return _cache;
+	}
+
+	// Subclasses opt into second-level caching by calling this method on their constructor:
+	protected void setCache(EntityCache cache) {
+		_cache = cache;
+	}
+
+	public QueryCache getQueryCache() {
+		return _queryCache;
+	}
+
+	public boolean hasNaturalKeyIds() {
+		return _naturalKeyIds;
+	}
+
+	// Subclasses call this method on their constructor to derive the ids of their instances from
+	// their natural key, so that save and findSingle on the natural key become single-key gets,
+	// and the natural key is unique by construction. Natural key properties must be read-only.
+	protected void useNaturalKeyIds() {
+		_naturalKeyIds = true;
+	}
+
+	// Returns the id for the natural key values, as stored in the datastore. Ids are the first
+	// 63 bits of the SHA-1 hash of the encoded values, so collisions are very unlikely but
+	// possible; they are detected when reading and fail on insert.
+	long getNaturalKeyId(List<Object> tuple) {
+		return toNaturalKeyId(Strings.toSha1(UniqueIndex.encode(getName(), tuple.toArray())));
+	}
+
+	// For Self and tests:
+	// Converts a hexadecimal SHA-1 hash into an id, from its first 8 bytes without the sign bit:
+	static long toNaturalKeyId(String hash) {
+		// Each half fits in a long, so it parses regardless of its first digit:
+		long id = (Long.parseLong(hash.substring(0, 8), 16) << 32 | Long.parseLong(hash.substring(8, 16), 16)) & Long.MAX_VALUE;
+		// Zero is not a valid id:
+		return id == 0 ? 1 : id;
+	}
+
+	// Subclasses opt into caching query results by calling this method on their constructor.
+	// Queries can also opt out, or use a different cache, through Query.setQueryCache.
+	protected void setQueryCache(QueryCache cache) {
+		_queryCache = cache;
+	}
+
 	// For Entities:
 	@SuppressWarnings("unchecked")
 	void load() {
 		if(!_loaded) {
 			getLogger().log(info("loading entity {}", getName()));
 			// Load all related entities and dependencies:
-			for(Property<?> prop : _properties.values()) {
+			for(Property<?> prop : _schema) {
 				if(prop.isForeignKey()) {
 					// Get the foreign entity:
 					Entity<?> foreignEntity = Entities.getEntityForInstance(prop.getType());
@@ -367,15 +990,73 @@ public abstract class Entity<I extends Instance<?>> {
 					getLogger().log(info("created dependency between {} and {}", foreignEntity.getName(), getName()));
 				}
 			}
+			// Auto-generated properties other than the id get their values from a generator:
+			for(Property<?> prop : _schema) {
+				if(prop.isAutoGenerated() && prop != id && !prop.hasGenerator()) {
+					throw new IllegalUsageException(x("auto-generated property {} needs a value generator", prop.getFullName()));
+				}
+			}
+			// Unique properties are enforced as single-property constraints:
+			// (if the property is auto-generated, uniqueness is guaranteed by the generator)
+			List<UniqueConstraint> constraints = new ArrayList<>();
+			for(Property<?> prop : _schema) {
+				if(prop.isUnique() && !prop.isAutoGenerated()) {
+					constraints.add(new UniqueConstraint(prop));
+				}
+			}
+			Iterator<UniqueConstraint> it = _getUniqueConstraints();
+			while(it.hasNext()) {
+				constraints.add(it.next());
+			}
+			if(_naturalKeyIds) {
+				Property<?>[] naturalKey = getNaturalKeyProperties();
+				if(naturalKey == null || naturalKey.length == 0) {
+					throw new IllegalUsageException(x("entity {} needs a natural key to derive ids from it", getName()));
+				}
+				for(Property<?> prop : naturalKey) {
+					if(!prop.isReadOnly()) {
+						throw new IllegalUsageException(x("property {} needs to be read-only to derive ids from it", prop.getFullName()));
+					}
+				}
+				// The natural key is unique by construction:
+				constraints.remove(new UniqueConstraint(naturalKey));
+			}
+			_uniqueIndex = new UniqueIndex<I>(this, constraints);
+			// Plan updates:
+			_updatePlan = new BitSet(_schema.length);
+			for(UniqueConstraint uc : constraints) {
+				for(Property<?> prop : uc.getProperties()) {
+					_updatePlan.set(prop.getOrdinal());
+				}
+			}
+			// Freeze the schema and plan inserts:
+			List<Property<?>> insertPlan = new ArrayList<>(_schema.length);
+			for(Property<?> prop : _schema) {
+				if(prop != id) {
+					insertPlan.add(prop);
+				}
+			}
+			_insertPlan = insertPlan.toArray(new Property<?>[insertPlan.size()]);
 			_loaded = true;
 		}
 	}
 
-	// For Query:
+	// For Instance:
+	// Returns the properties indexed by ordinal. Callers must not modify the array.
+	Property<?>[] getSchema() {
+		return _schema;
+	}
+
+	// For Query and CascadePlan:
 	DatastoreService getDatastoreService() {
 		return _ds;
 	}
 
+	// For Query:
+	AsyncDatastoreService getAsyncDatastoreService() {
+		return _ads;
+	}
+
 	private <T> Property<T> _addProperty(Class<T> c, String name, boolean indexed, ValueGenerator<T> def, Property.OnDelete onDelete, Constraint ... constraints) {
 		Checker.checkNull(c);
 		Checker.checkEmpty(name);
@@ -383,8 +1064,13 @@ public abstract class Entity<I extends Instance<?>> {
 		if(_properties.containsKey(name)) {
 			throw new IllegalArgumentException("property named '"+name+"' already exists");
 		}
-		Property<T> prop = new Property<T>(this, c, name, indexed, def, onDelete, constraints);
+		if(_loaded) {
+			throw new IllegalUsageException("properties cannot be added after the entity has been loaded");
+		}
+		Property<T> prop = new Property<T>(this, _schema.length, c, name, indexed, def, onDelete, constraints);
 		_properties.put(name, prop);
+		_schema = Arrays.copyOf(_schema, _schema.length+1);
+		_schema[prop.getOrdinal()] = prop;
 		return prop;
 	}
 	
@@ -419,79 +1105,504 @@ public abstract class Entity<I extends Instance<?>> {
 		}
 	}
 
-	private void _put(I i) {
-    	// Consistency check:
-		if(i.hasUpdates()) {
-			throw new IntegrityException();
+	// Retrieves several entities from the second-level cache or the datastore, caching the outcome.
+	// The result maps every key to its entity, or to null if the entity does not exist.
+	private Map<Key,com.google.appengine.api.datastore.Entity> _getAll(List<Key> keys) {
+		Map<Key,com.google.appengine.api.datastore.Entity> result = new HashMap<>();
+		List<Key> pending = keys;
+		EntityCache cache = _getReadCache();
+		if(cache != null) {
+			result.putAll(cache.getAll(keys));
+			getLogger().log(info("{} of {} {} instance(s) found in cache", result.size(), keys.size(), getInstanceName()));
+			pending = new ArrayList<>(keys.size()-result.size());
+			for(Key key : keys) {
+				if(!result.containsKey(key)) {
+					pending.add(key);
+				}
+			}
+		}
+		// Entries written while the datastore is read must not be overwritten:
+		Object load = cache == null || pending.isEmpty() ? null : cache.startLoad(pending);
+		Map<Key,com.google.appengine.api.datastore.Entity> retrieved = new HashMap<>();
+		for(int from=0; from<pending.size(); from+=MAX_BATCH_GET) {
+			List<Key> chunk = pending.subList(from, Math.min(from+MAX_BATCH_GET, pending.size()));
+			getLogger().log(info("running query: SELECT * FROM {} WHERE id IN ({} ids)", getName(), chunk.size()));
+			Map<Key,com.google.appengine.api.datastore.Entity> entities = _ds.get(chunk);
+			for(Key key : chunk) {
+				retrieved.put(key, entities.get(key));
+			}
+		}
+		if(load != null) {
+			cache.finishLoad(load, retrieved);
 		}
-		// Persist:
-    	_ds.put(i.getGoogleEntity());
+		result.putAll(retrieved);
+		return result;
 	}
 
-	// TODO performance - we retrieve "existing" multiple times
-	private void _checkUnique(Instance<?> i, Property<?> prop, Object value, boolean insert) {
-		Instance<?> existing = findSingle(new QueryArg(prop, value, QueryArg.Operator.EQUAL));
-		if(existing != null) {
-			if(insert) {
-				throw new UniqueConstraintException(prop, value);				
+	// Validates an instance for insertion and flushes its values, including defaults:
+	private void _prepareInsert(I i) {
+		if(i.isPersisted()) {
+			throw new IllegalArgumentException("entity has already been persisted");
+		}
+    	// Validate constraints:
+		// Note: the following constraints are already validated on Instance.setValue:
+		// Data type, format, read-only, auto-generated. Mandatory is also validated
+		// on Instance.setValue, but we need to check for omitted properties.
+		for(Property<?> prop : _insertPlan) {
+			Object value = i.getValue(prop);
+			// Automatically generate (generators are checked on load):
+			if(prop.isAutoGenerated()) {
+				value = prop.getDefaultValue();
 			}
-			if(!existing.equals(i)) {
-				throw new UniqueConstraintException(prop, value);
+			// Default value:
+			if(value == null) {
+				Object def = prop.getDefaultValue();
+				if(def != null) {
+					value = def;
+				}
+			}
+			// Mandatory:
+			if(prop.isMandatory()) {
+				if(value == null) {
+					throw new MandatoryConstraintException(prop);
+				}
 			}
+			// All okay, set the value. Note that we will lose some updates in case
+			// one property validation fails after others have been validated successfully.
+			// However, because this is an unrecoverable exception, we don't care about that.
+			i.flush(prop, value);
 		}
 	}
-	
-	private void _checkUniqueConstraints(Instance<?> i, boolean insert, Set<Property<?>> updatedProps) {
-		Iterator<UniqueConstraint> it = _getUniqueConstraints();
-		while(it.hasNext()) {
-			UniqueConstraint uc = it.next();
-			// Check if any of the constraint's properties have been updated:
-			boolean updated = false;
-			checkUpdates:
-			for(Property<?> prop : uc.getProperties()) {
-				if(updatedProps.contains(prop)) {
-					updated = true;
-					break checkUpdates;
+
+	// Persists a batch of flushed instances. For updates, "previous" holds the unique index
+	// keys of each instance before its updates were flushed (see UniqueIndex.write).
+	private void _putAll(List<I> batch, List<Set<Key>> previous) {
+		if(_isPlainPut(previous)) {
+			// Chunks are marked as persisted as they are written, so that a retry after a failed
+			// chunk does not insert the earlier ones again:
+			for(int from=0; from<batch.size(); from+=MAX_BATCH_PUT) {
+				List<I> chunk = batch.subList(from, Math.min(from+MAX_BATCH_PUT, batch.size()));
+				_write(chunk, previous == null ? null : previous.subList(from, from+chunk.size()));
+				afterPut(chunk);
+			}
+			return;
+		}
+		// The unique index marks the transactions it committed as persisted if a later one fails:
+		_write(batch, previous);
+		afterPut(batch);
+	}
+
+	// Returns true if the batch can be written without the unique index:
+	private boolean _isPlainPut(List<Set<Key>> previous) {
+		return _uniqueIndex.isEmpty() || (previous != null && _isUnchanged(previous));
+	}
+
+	// Writes a batch of flushed instances, without updating caches (see _putAll):
+	private void _write(List<I> batch, List<Set<Key>> previous) {
+		for(I i : batch) {
+	    	// Consistency check:
+			if(i.hasUpdates()) {
+				throw new IntegrityException();
+			}
+		}
+		if(_isPlainPut(previous)) {
+			// Persist in chunks the datastore can handle in one call:
+			for(int from=0; from<batch.size(); from+=MAX_BATCH_PUT) {
+				List<com.google.appengine.api.datastore.Entity> entities = new ArrayList<>(MAX_BATCH_PUT);
+				for(I i : batch.subList(from, Math.min(from+MAX_BATCH_PUT, batch.size()))) {
+					entities.add(i.getGoogleEntity());
 				}
+				_ds.put(entities);
 			}
-			if(updated) {
-				// They have, we need to check if the constraint has been violated:
-				Instance<?> existing = findSingle(uc.toArgs(i));
-				if(existing != null) {
-					if(insert) {
-						throw new UniqueConstraintException(uc);
-					}
-					if(!existing.equals(i)) {
-						throw new UniqueConstraintException(uc);
-					}
+		}
+		else {
+			_uniqueIndex.write(batch, previous);
+		}
+	}
+
+	// Returns true if none of the instances being updated changes its unique values:
+	private boolean _isUnchanged(List<Set<Key>> previous) {
+		for(Set<Key> keys : previous) {
+			if(keys != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// For Self and Entities:
+	// Marks a batch of instances as persisted, once it has been written to the datastore:
+	void afterPut(List<I> batch) {
+		// Refresh the second-level cache:
+		Map<Key,com.google.appengine.api.datastore.Entity> refreshed = new HashMap<>();
+		for(I i : batch) {
+			i.setPersisted();
+			refreshed.put(i.getGoogleEntity().getKey(), i.getGoogleEntity());
+		}
+		_refreshCache(refreshed);
+		for(I i : batch) {
+			_remember(i);
+		}
+		_invalidateQueries();
+	}
+
+	// For Entities:
+	// Validates and flushes instances so that they can be written along with instances of other
+	// entities. Returns false, without touching the instances, if this entity needs to insert
+	// them by itself, i.e. when unique values or natural key ids need to be checked.
+	boolean prepareBatchInsert(List<I> batch) {
+		_checkLoaded();
+		if(!_uniqueIndex.isEmpty() || _naturalKeyIds) {
+			return false;
+		}
+		for(I i : batch) {
+			Checker.checkNull(i);
+			_prepareInsert(i);
+		}
+		getLogger().log(info("inserting {} {} instance(s)", batch.size(), getInstanceName()));
+		return true;
+	}
+
+	// Finds persisted instances whose values for the given properties match any of the tuples.
+	// Queries bypass the query cache, so that recent inserts are not missed because of it.
+	private Map<List<Object>,List<I>> _findExisting(Property<?>[] props, Set<List<Object>> tuples) {
+		Map<List<Object>,List<I>> result = new HashMap<>();
+		if(tuples.isEmpty()) {
+			return result;
+		}
+		// Every tuple is queried with equality on all its properties, since any single property
+		// may match a large part of the table. Queries run concurrently, MAX_IN_VALUES at a time:
+		List<List<Object>> pending = new ArrayList<>(tuples);
+		for(int from=0; from<pending.size(); from+=QueryArg.MAX_IN_VALUES) {
+			List<Future<List<I>>> futures = new ArrayList<>(QueryArg.MAX_IN_VALUES);
+			for(List<Object> tuple : pending.subList(from, Math.min(from+QueryArg.MAX_IN_VALUES, pending.size()))) {
+				QueryArg[] args = new QueryArg[props.length];
+				for(int j=0; j<props.length; j++) {
+					args[j] = new QueryArg(props[j], tuple.get(j), QueryArg.Operator.EQUAL);
+				}
+				futures.add(new Query<I>(this).addWhere(args).runAsync());
+			}
+			for(int j=0; j<futures.size(); j++) {
+				List<I> matches = waitFor(futures.get(j));
+				if(!matches.isEmpty()) {
+					result.put(pending.get(from+j), matches);
 				}
 			}
 		}
+		return result;
 	}
-	
+
+	// Inserts instances under the ids derived from their natural keys. Existing instances are
+	// detected with a strongly consistent batch get.
+	private void _insertWithNaturalKeyIds(List<I> batch) {
+		Property<?>[] naturalKey = getNaturalKeyProperties();
+		List<com.google.appengine.api.datastore.Entity> originals = new ArrayList<>(batch.size());
+		Map<Key,I> keys = new LinkedHashMap<>();
+		for(I i : batch) {
+			com.google.appengine.api.datastore.Entity original = i.getGoogleEntity();
+			Key key = KeyFactory.createKey(getName(), getNaturalKeyId(_getTuple(i, naturalKey)));
+			// Natural key values are read-only, but they can be set after the id was reserved:
+			if(original.getKey().isComplete() && !original.getKey().equals(key)) {
+				throw new IllegalStateException(x("natural key of {} with id {} changed after its id was reserved", getInstanceName(), i.getId()));
+			}
+			if(keys.put(key, i) != null) {
+				throw new UniqueConstraintException(new UniqueConstraint(naturalKey));
+			}
+			originals.add(original);
+		}
+		List<Key> list = new ArrayList<>(keys.keySet());
+		Iterator<Key> it = list.iterator();
+		for(I i : batch) {
+			com.google.appengine.api.datastore.Entity e = new com.google.appengine.api.datastore.Entity(it.next());
+			e.setPropertiesFrom(i.getGoogleEntity());
+			i.setGoogleEntity(e);
+		}
+		// The existence check and the put need to happen in the same transaction, otherwise
+		// concurrent inserts of the same natural key would overwrite each other. Every row
+		// and each of its sentinels is a separate entity group:
+		int size = Math.max(1, UniqueIndex.MAX_GROUPS / (1+_uniqueIndex.size()));
+		int from = 0;
+		try {
+			for(; from<batch.size(); from+=size) {
+				int to = Math.min(from+size, batch.size());
+				_insertWithNaturalKeyIds(batch.subList(from, to), list.subList(from, to));
+			}
+		}
+		catch(RuntimeException e) {
+			// Restore incomplete keys of the instances that have not been persisted:
+			for(int j=from; j<batch.size(); j++) {
+				batch.get(j).setGoogleEntity(originals.get(j));
+			}
+			throw e;
+		}
+	}
+
+	// Inserts a chunk of instances with natural key ids in a transaction, or in the current one:
+	private void _insertWithNaturalKeyIds(final List<I> chunk, final List<Key> keys) {
+		// On contention, the check runs again to find out whether someone else inserted the same natural key:
+		transact(new Callable<Void>() {
+			public Void call() {
+				if(!_ds.get(keys).isEmpty()) {
+					throw new UniqueConstraintException(new UniqueConstraint(getNaturalKeyProperties()));
+				}
+				_write(chunk, null);
+				return null;
+			}
+		});
+		afterPut(chunk);
+	}
+
+	// Finds existing instances by the ids derived from their natural keys:
+	private Map<List<Object>,List<I>> _findExistingById(Property<?>[] props, Set<List<Object>> tuples) {
+		Map<Long,List<Object>> ids = new LinkedHashMap<>();
+		for(List<Object> tuple : tuples) {
+			ids.put(getNaturalKeyId(tuple), tuple);
+		}
+		Map<List<Object>,List<I>> result = new HashMap<>();
+		for(Map.Entry<Long,I> entry : find(ids.keySet()).entrySet()) {
+			List<Object> tuple = ids.get(entry.getKey());
+			if(!_getTuple(entry.getValue(), props).equals(tuple)) {
+				throw new IllegalStateException(x("natural key {} collides with the one of {}", tuple, entry.getValue()));
+			}
+			result.put(tuple, Collections.singletonList(entry.getValue()));
+		}
+		return result;
+	}
+
+	// Returns the natural key values if the arguments are equality filters on exactly the
+	// natural key properties, or null otherwise:
+	private List<Object> _getNaturalKeyTuple(QueryArg[] args) {
+		Property<?>[] props = getNaturalKeyProperties();
+		if(args.length != props.length) {
+			return null;
+		}
+		Object[] values = new Object[props.length];
+		for(QueryArg arg : args) {
+			int j = pro.outcome.util.Arrays.indexOf(arg.getProperty(), props);
+			if(j == -1 || arg.getOperator() != QueryArg.Operator.EQUAL || arg.isParameter()) {
+				return null;
+			}
+			values[j] = arg.getProperty().toPrimitive(arg.getValue());
+		}
+		return _getTuple(values);
+	}
+
+	// Reads the flushed (datastore) values of the given properties:
+	private List<Object> _getTuple(I i, Property<?>[] props) {
+		Object[] values = new Object[props.length];
+		for(int j=0; j<props.length; j++) {
+			values[j] = i.getGoogleEntity().getProperty(props[j].getName());
+		}
+		return _getTuple(values);
+	}
+
+	private List<Object> _getTuple(Object[] values) {
+		List<Object> tuple = new ArrayList<>(values.length);
+		for(Object value : values) {
+			// The datastore returns all integers as Long and all decimals as Double:
+			if(value instanceof Integer || value instanceof Short || value instanceof Byte) {
+				value = ((Number)value).longValue();
+			}
+			else if(value instanceof Float) {
+				value = ((Float)value).doubleValue();
+			}
+			tuple.add(value);
+		}
+		return tuple;
+	}
+
+	// Runs the work in the current transaction, or in a new one that is not retried. Contention
+	// on commit means that someone else updated the same rows, so the instances are stale.
+	private <T> T _runInTransaction(Callable<T> work) {
+		if(TransactionContext.getCurrent() != null) {
+			return _call(work);
+		}
+		TransactionContext ctx = TransactionContext.begin();
+		try {
+			T result = _call(work);
+			ctx.commit();
+			return result;
+		}
+		catch(StaleInstanceException sie) {
+			// Already names the stale instance and its version (see _checkVersions):
+			throw sie;
+		}
+		catch(ConcurrentModificationException cme) {
+			throw new StaleInstanceException(x("{} instance(s) were updated concurrently", getInstanceName()), cme);
+		}
+		finally {
+			ctx.end();
+		}
+	}
+
+	private void _checkVersioned() {
+		_checkLoaded();
+		if(_version == null) {
+			throw new IllegalUsageException(x("entity {} does not have a version property", getName()));
+		}
+	}
+
+	// Checks that the persisted instances have the same version in the datastore as when they
+	// were retrieved. Rows are read in the current transaction, which fails on commit if they
+	// are updated by someone else in the meantime.
+	private void _checkVersions(List<I> instances) {
+		List<Key> keys = new ArrayList<>(instances.size());
+		for(I i : instances) {
+			_checkPersisted(i);
+			keys.add(i.getGoogleEntity().getKey());
+		}
+		for(int from=0; from<keys.size(); from+=MAX_BATCH_GET) {
+			Map<Key,com.google.appengine.api.datastore.Entity> current = _ds.get(keys.subList(from, Math.min(from+MAX_BATCH_GET, keys.size())));
+			for(I i : instances.subList(from, Math.min(from+MAX_BATCH_GET, keys.size()))) {
+				com.google.appengine.api.datastore.Entity e = current.get(i.getGoogleEntity().getKey());
+				Object expected = i.getGoogleEntity().getProperty(_version.getName());
+				if(e == null) {
+					throw new StaleInstanceException(x("{} with id {} no longer exists", getInstanceName(), i.getId()));
+				}
+				if(!Objects.equals(e.getProperty(_version.getName()), expected)) {
+					throw new StaleInstanceException(x("{} with id {} has version {}, expected {}", getInstanceName(), i.getId(), e.getProperty(_version.getName()), expected));
+				}
+			}
+		}
+	}
+
+	// Returns the current unit of work, unless a transaction is active. Writes in transactions
+	// are never deferred, since they need to be sent before the transaction is committed.
+	private UnitOfWork _getUnitOfWork() {
+		return TransactionContext.getCurrent() == null ? UnitOfWork.getCurrent() : null;
+	}
+
+	// Retrieves an entity from the second-level cache or the datastore, caching the outcome:
+	private com.google.appengine.api.datastore.Entity _get(Key key) {
+		EntityCache cache = _getReadCache();
+		if(cache != null) {
+			Map<Key,com.google.appengine.api.datastore.Entity> cached = cache.getAll(Collections.singleton(key));
+			if(cached.containsKey(key)) {
+				getLogger().log(info("{} with id {} found in cache", getInstanceName(), key.getId()));
+				return cached.get(key);
+			}
+		}
+		// Entries written while the datastore is read must not be overwritten:
+		Object load = cache == null ? null : cache.startLoad(Collections.singleton(key));
+		com.google.appengine.api.datastore.Entity e = null;
+		try {
+			getLogger().log(info("running query: SELECT * FROM {} WHERE id = {}", getName(), key.getId()));
+			e = _ds.get(key);
+			getLogger().log(info("{} found", getInstanceName()));
+		}
+		catch(EntityNotFoundException enfe) {
+			getLogger().log(info("{} not found", getInstanceName()));
+		}
+		if(cache != null) {
+			cache.finishLoad(load, Collections.singletonMap(key, e));
+		}
+		return e;
+	}
+
 	private Iterator<UniqueConstraint> _getUniqueConstraints() {
 		_addNaturalKeyConstraint();
 		return _uConstraints.iterator();
 	}
 
+	// Records the instance in the current request's identity map, if any:
+	private void _remember(I i) {
+		IdentityMap map = IdentityMap.getCurrent();
+		if(map != null) {
+			map.put(i.getGoogleEntity().getKey(), i);
+		}
+	}
+
+	// Records that the key no longer exists in the current request's identity map, if any:
+	private void _forget(Key key) {
+		IdentityMap map = IdentityMap.getCurrent();
+		if(map != null) {
+			map.put(key, null);
+		}
+	}
+
+	// For Self and CascadePlan:
+	// Records that the keys no longer exist in the identity map and the second-level cache.
+	void forget(List<Key> keys) {
+		Map<Key,com.google.appengine.api.datastore.Entity> missing = new HashMap<>();
+		for(Key key : keys) {
+			_forget(key);
+			missing.put(key, null);
+		}
+		_refreshCache(missing);
+		_invalidateQueries();
+	}
+
+	// For TransactionContext:
+	// Discards cached copies of the keys written in a transaction once it ends. If the transaction
+	// rolled back, instances recorded in the identity map hold values that were never persisted.
+	void evict(Collection<Key> keys, boolean rolledBack) {
+		IdentityMap map = IdentityMap.getCurrent();
+		if(rolledBack && map != null) {
+			for(Key key : keys) {
+				map.remove(key);
+			}
+		}
+		if(_cache != null) {
+			_cache.removeAll(keys);
+		}
+		_invalidateQueries();
+	}
+
+	// Refreshes the second-level cache with written entities, mapping deleted keys to null. Inside
+	// a transaction, entries are evicted instead, since the writes may still roll back:
+	private void _refreshCache(Map<Key,com.google.appengine.api.datastore.Entity> written) {
+		TransactionContext ctx = TransactionContext.getCurrent();
+		if(ctx != null) {
+			ctx.written(this, written.keySet());
+			if(_cache != null) {
+				_cache.removeAll(written.keySet());
+			}
+		}
+		else if(_cache != null) {
+			_cache.putAll(written);
+		}
+	}
+
+	// Returns the identity map of the current request, unless a transaction is active. Reads in
+	// transactions need to go to the datastore, so that they see the latest committed values.
+	private IdentityMap _getIdentityMap() {
+		return TransactionContext.getCurrent() == null ? IdentityMap.getCurrent() : null;
+	}
+
+	// Returns the second-level cache to read from, or null inside transactions (see above):
+	private EntityCache _getReadCache() {
+		return TransactionContext.getCurrent() == null ? _cache : null;
+	}
+
+	// Increments the write version of this entity, so that cached query results are discarded:
+	private void _invalidateQueries() {
+		if(_queryCache != null) {
+			_queryCache.incrementVersion(getName());
+		}
+	}
+
+	// For Self and Dependency:
+	// Waits for the future, unwrapping datastore exceptions:
+	static <T> T waitFor(Future<T> f) {
+		try {
+			return f.get();
+		}
+		catch(ExecutionException ee) {
+			if(ee.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)ee.getCause();
+			}
+			throw new IntegrityException(ee.getCause());
+		}
+		catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for the datastore", ie);
+		}
+	}
+
 	private I _createSafely(com.google.appengine.api.datastore.Entity e) {
 		if(e == null) {
 			return null;
 		}
 		return Instance.newFrom(_instanceType, e);
 	}
-	
-	// TODO rename to KeyIterator for clarity
-	private Iterable<Key> _getKeysFrom(final Iterator<I> it) {
-		return new Iterable<Key>() {
-			public Iterator<Key> iterator() {
-				return new Iterator<Key>() {
-					private final Iterator<I> _it = it;					
-					public boolean hasNext() { return _it.hasNext(); }
-					public Key next() { return _it.next().getGoogleEntity().getKey(); }
-					public void remove() { _it.remove(); }
-				};
-			}
-		};
-	}
 }
@@ -0,0 +1,37 @@
+// All the information contained in this source code file is a property of Outcome Professional Services Limited,
+// a company registered in the United Kingdom. Use and distribution of any part of the information 
+// contained in this source code file without our prior consent is forbidden. If you have an interest 
+// in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
+package pro.outcome.data;
+import java.util.Collection;
+import java.util.Map;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Entity;
+
+
+// Second-level cache for datastore entities, shared across requests. Implementations
+// must return copies of the cached entities, because instances modify them on update.
+// Writers put or remove entries. Readers that miss fill them with startLoad and finishLoad
+// instead, so that a slow read cannot overwrite an entry written after it started.
+public interface EntityCache {
+
+	// Returns the cached entries for the given keys. Keys that are not cached are omitted
+	// from the result. Keys that are cached as missing are mapped to null.
+	public Map<Key,Entity> getAll(Collection<Key> keys);
+
+	// Caches the entity under the given key. A null entity records that the key is missing.
+	public void put(Key key, Entity e);
+
+	// Caches all entries of the map. Null values record that the respective key is missing.
+	public void putAll(Map<Key,Entity> entities);
+
+	public void removeAll(Collection<Key> keys);
+
+	// Marks the given keys as being loaded from the datastore, unless they are cached. Keys
+	// being loaded are still reported as not cached. Returns a handle for finishLoad.
+	public Object startLoad(Collection<Key> keys);
+
+	// Caches entries read from the datastore after startLoad, skipping keys that have been put
+	// or removed since. Null values record that the respective key is missing.
+	public void finishLoad(Object handle, Map<Key,Entity> entities);
+}
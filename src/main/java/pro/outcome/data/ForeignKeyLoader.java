@@ -0,0 +1,56 @@
+// All the information contained in this source code file is a property of Outcome Professional Services Limited,
+// a company registered in the United Kingdom. Use and distribution of any part of the information 
+// contained in this source code file without our prior consent is forbidden. If you have an interest 
+// in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
+package pro.outcome.data;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+// Resolves the foreign keys of many rows at once (see Query.include).
+class ForeignKeyLoader {
+
+	// For Query, QueryResult and QueryStream:
+	// Retrieves the instances that the rows' foreign keys point to, with one batch get per
+	// related entity, and wires them into the rows so that reading them is free.
+	static void include(List<? extends Instance<?>> rows, Property<?>[] includes) {
+		if(includes == null || rows.isEmpty()) {
+			return;
+		}
+		// Collect the distinct ids for each related entity:
+		Map<Entity<?>,Set<Long>> ids = new LinkedHashMap<>();
+		for(Property<?> fk : includes) {
+			Set<Long> set = ids.get(fk.getRelatedEntity());
+			if(set == null) {
+				set = new LinkedHashSet<>();
+				ids.put(fk.getRelatedEntity(), set);
+			}
+			for(Instance<?> row : rows) {
+				Long id = (Long)row.getPrimitiveValue(fk);
+				if(id != null) {
+					set.add(id);
+				}
+			}
+		}
+		Map<Entity<?>,Map<Long,? extends Instance<?>>> found = new HashMap<>();
+		for(Map.Entry<Entity<?>,Set<Long>> entry : ids.entrySet()) {
+			found.put(entry.getKey(), entry.getKey().find(entry.getValue()));
+		}
+		for(Property<?> fk : includes) {
+			Map<Long,? extends Instance<?>> targets = found.get(fk.getRelatedEntity());
+			for(Instance<?> row : rows) {
+				Long id = (Long)row.getPrimitiveValue(fk);
+				if(id != null) {
+					row.setRef(fk, id, targets.get(id));
+				}
+			}
+		}
+	}
+
+	private ForeignKeyLoader() {
+	}
+}
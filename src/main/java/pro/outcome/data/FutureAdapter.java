@@ -0,0 +1,98 @@
+// All the information contained in this source code file is a property of Outcome Professional Services Limited,
+// a company registered in the United Kingdom. Use and distribution of any part of the information 
+// contained in this source code file without our prior consent is forbidden. If you have an interest 
+// in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
+package pro.outcome.data;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+// Converts the result of a datastore future once it is available. The conversion runs
+// once, on the thread that first calls get, and its outcome is remembered. Adapters
+// without a source future convert a null source value, e.g. to resolve lazy lists.
+abstract class FutureAdapter<S,T> implements Future<T> {
+
+	// TYPE:
+	// Returns a future whose value is already known:
+	static <T> Future<T> done(T value) {
+		FutureAdapter<T,T> f = new FutureAdapter<T,T>(null) {
+			protected T convert(T source) { return source; }
+		};
+		f._result = value;
+		f._converted = true;
+		return f;
+	}
+
+	// INSTANCE:
+	private final Future<S> _source;
+	private boolean _converted;
+	private T _result;
+	private ExecutionException _failure;
+
+	protected FutureAdapter(Future<S> source) {
+		_source = source;
+		_converted = false;
+		_result = null;
+		_failure = null;
+	}
+
+	protected abstract T convert(S source);
+
+	// Subclasses can override this to recover from failures:
+	protected T convert(ExecutionException ee) throws ExecutionException {
+		throw ee;
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return _source == null ? false : _source.cancel(mayInterruptIfRunning);
+	}
+
+	public boolean isCancelled() {
+		return _source == null ? false : _source.isCancelled();
+	}
+
+	public boolean isDone() {
+		return _source == null ? _converted : _source.isDone();
+	}
+
+	public synchronized T get() throws InterruptedException, ExecutionException {
+		if(!_converted) {
+			S source = null;
+			try {
+				source = _source == null ? null : _source.get();
+				_result = convert(source);
+			}
+			catch(ExecutionException ee) {
+				try {
+					_result = convert(ee);
+				}
+				catch(ExecutionException failure) {
+					_failure = failure;
+				}
+			}
+			catch(RuntimeException re) {
+				_failure = new ExecutionException(re);
+			}
+			_converted = true;
+		}
+		if(_failure != null) {
+			throw _failure;
+		}
+		return _result;
+	}
+
+	public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if(!_converted && _source != null) {
+			// Wait for the source without converting, then convert as usual:
+			try {
+				_source.get(timeout, unit);
+			}
+			catch(ExecutionException ee) {
+				// Handled by get() below.
+			}
+		}
+		return get();
+	}
+}
@@ -1,6 +1,17 @@
 package pro.outcome.data;
 
 import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import pro.outcome.util.Checker;
+import static pro.outcome.util.Shortcuts.*;
 
 public interface Generators {
 
@@ -21,4 +32,75 @@ public interface Generators {
 	public class Now implements ValueGenerator<Date> {
 		public Date generate() { return new Date(); }
 	}
+
+	// Generates unique numbers for AUTO_GENERATED properties, using the hi/lo algorithm: blocks
+	// of numbers are reserved in a transaction on a sequence row, and handed out from memory.
+	// Numbers are increasing within each application instance, but instances reserve different
+	// blocks, so numbers are not issued in order across instances. Unused numbers in a block
+	// are lost when the instance shuts down.
+	public class Sequence implements ValueGenerator<Long> {
+
+		// TYPE:
+		static final String KIND = "_Sequence";
+		public static final int DEFAULT_BLOCK_SIZE = 100;
+		private static final String _NEXT = "next";
+		private static final Logger _logger = Logger.getLogger(Sequence.class.getName());
+
+		// INSTANCE:
+		private final Key _key;
+		private final int _blockSize;
+		private final DatastoreService _ds;
+		private final BlockAllocator _allocator;
+
+		public Sequence(String name, int blockSize) {
+			Checker.checkEmpty(name);
+			Checker.checkMinValue(blockSize, 1);
+			_key = KeyFactory.createKey(KIND, name);
+			_blockSize = blockSize;
+			_ds = DatastoreServiceFactory.getDatastoreService();
+			_allocator = new BlockAllocator() {
+				protected Block reserve() {
+					return _reserve();
+				}
+			};
+		}
+
+		public Sequence(String name) {
+			this(name, DEFAULT_BLOCK_SIZE);
+		}
+
+		public Long generate() {
+			return _allocator.next();
+		}
+
+		private BlockAllocator.Block _reserve() {
+			return Entity.retry(new Callable<BlockAllocator.Block>() {
+				public BlockAllocator.Block call() {
+					// Sequences run in their own transaction, so they can be used inside others:
+					Transaction txn = _ds.beginTransaction(TransactionOptions.Builder.withXG(false));
+					try {
+						com.google.appengine.api.datastore.Entity e;
+						try {
+							e = _ds.get(txn, _key);
+						}
+						catch(EntityNotFoundException enfe) {
+							e = new com.google.appengine.api.datastore.Entity(_key);
+							e.setUnindexedProperty(_NEXT, 1L);
+						}
+						long start = (Long)e.getProperty(_NEXT);
+						e.setUnindexedProperty(_NEXT, start+_blockSize);
+						_ds.put(txn, e);
+						txn.commit();
+						_logger.log(info("reserved {} value(s) of sequence {} starting at {}", _blockSize, _key.getName(), start));
+						return new BlockAllocator.Block(start, start+_blockSize);
+					}
+					finally {
+						if(txn.isActive()) {
+							txn.rollback();
+						}
+					}
+				}
+			});
+		}
+	}
 }
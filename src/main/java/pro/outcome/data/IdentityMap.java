@@ -0,0 +1,86 @@
+// All the information contained in this source code file is a property of Outcome Professional Services Limited,
+// a company registered in the United Kingdom. Use and distribution of any part of the information 
+// contained in this source code file without our prior consent is forbidden. If you have an interest 
+// in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
+package pro.outcome.data;
+import java.util.Map;
+import java.util.HashMap;
+import com.google.appengine.api.datastore.Key;
+import pro.outcome.util.Checker;
+import pro.outcome.util.IllegalUsageException;
+
+
+// Keeps a single Instance per datastore key for the length of a request, so that
+// repeated lookups by id (and foreign key resolution) only hit the datastore once.
+// Maps are bound to the current thread and are re-entrant, so that nested calls
+// to open (e.g. forwarded requests) share the map opened by the outermost caller.
+public class IdentityMap {
+
+	// TYPE:
+	private static final ThreadLocal<IdentityMap> _current = new ThreadLocal<>();
+
+	public static void open() {
+		IdentityMap map = _current.get();
+		if(map == null) {
+			map = new IdentityMap();
+			_current.set(map);
+		}
+		map._depth++;
+	}
+
+	public static void close() {
+		IdentityMap map = _current.get();
+		if(map == null) {
+			throw new IllegalUsageException("identity map has not been opened");
+		}
+		map._depth--;
+		if(map._depth == 0) {
+			map._instances.clear();
+			_current.remove();
+		}
+	}
+
+	public static boolean isOpen() {
+		return _current.get() != null;
+	}
+
+	// For Entity:
+	static IdentityMap getCurrent() {
+		return _current.get();
+	}
+
+	// INSTANCE:
+	// Note: null values record keys that were not found in the datastore.
+	private final Map<Key,Instance<?>> _instances;
+	private int _depth;
+
+	private IdentityMap() {
+		_instances = new HashMap<>();
+		_depth = 0;
+	}
+
+	public int size() {
+		return _instances.size();
+	}
+
+	// For Entity:
+	boolean contains(Key key) {
+		return _instances.containsKey(key);
+	}
+
+	// For Entity:
+	Instance<?> get(Key key) {
+		return _instances.get(key);
+	}
+
+	// For Entity:
+	void put(Key key, Instance<?> i) {
+		Checker.checkNull(key);
+		_instances.put(key, i);
+	}
+
+	// For Entity:
+	void remove(Key key) {
+		_instances.remove(key);
+	}
+}
@@ -4,16 +4,13 @@
 // in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
 package pro.outcome.data;
 import java.util.Date;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.HashMap;
-import java.util.Set;
-import java.util.HashSet;
+import java.util.BitSet;
+import com.google.appengine.api.datastore.Key;
+import pro.outcome.util.Arrays;
 import pro.outcome.util.Checker;
 import pro.outcome.util.ConstructorNotFoundException;
 import pro.outcome.util.ConstructorNotVisibleException;
 import pro.outcome.util.IntegrityException;
-import pro.outcome.util.Reflection;
 import static pro.outcome.util.Shortcuts.*;
 
 
@@ -22,8 +19,9 @@ public abstract class Instance<E extends Entity<?>> {
 	// TYPE:
 	static <I extends Instance<?>> I newFrom(Class<I> c, com.google.appengine.api.datastore.Entity e) {
 		try {
-			I i = Reflection.createObject(c);
+			I i = InstanceFactory.create(c);
 			i.setGoogleEntity(e);
+			i.setPersisted();
 			return i;
 		}
 		catch(ConstructorNotFoundException cnfe) {
@@ -36,13 +34,26 @@ public abstract class Instance<E extends Entity<?>> {
 	
 	// INSTANCE:
 	private com.google.appengine.api.datastore.Entity _data;
-	private final Map<Property<?>,Object> _updates;
+	// Keys can be complete before instances are persisted (see Entity.reserveIds):
+	private boolean _persisted;
+	// Values set since the instance was retrieved or last flushed, indexed by property ordinal,
+	// and the ordinals that have been set. Both are only allocated on the first update:
+	private Object[] _updates;
+	private BitSet _dirty;
+	// References of foreign keys, indexed by property ordinal. Only allocated on first use:
+	private Ref<?>[] _refs;
 	private E _e;
+	// Properties retrieved by a projection query, or null if all properties were retrieved:
+	private Property<?>[] _projection;
 	
 	protected Instance() {
 		_data = new com.google.appengine.api.datastore.Entity(getEntity().getName());
-		_updates = new HashMap<>();
+		_persisted = false;
+		_updates = null;
+		_dirty = null;
+		_refs = null;
 		_e = null;
+		_projection = null;
 	}
 
 	public boolean equals(Object o) {
@@ -66,19 +77,19 @@ public abstract class Instance<E extends Entity<?>> {
 		StringBuilder sb = new StringBuilder(getEntity().getInstanceName());
 		sb.append(':');
 		sb.append(' ');
-		Iterator<Property<?>> it = getEntity().getProperties().values().iterator(); 
-		while(it.hasNext()) {
-			Property<?> prop = it.next();
+		for(Property<?> prop : getEntity().getSchema()) {
+			if(!isSelected(prop)) {
+				continue;
+			}
 			sb.append('[');
 			sb.append(prop.getName());
 			sb.append('=');
-			sb.append(getValue(prop));
+			// Print references, so that foreign keys are not retrieved:
+			sb.append(prop.isForeignKey() ? _getRef(prop) : getValue(prop));
 			sb.append(']');
-			if(it.hasNext()) {
-				sb.append(' ');
-			}
+			sb.append(' ');
 		}
-		return sb.toString();
+		return sb.toString().trim();
 	}
 
 	@SuppressWarnings("unchecked")
@@ -103,15 +114,38 @@ public abstract class Instance<E extends Entity<?>> {
 		if(prop == getEntity().id) {
 			return (T)getId();
 		}
+		if(!isSelected(prop)) {
+			throw new IllegalStateException(x("property {} was not selected", prop.getFullName()));
+		}
 		// Check if we have the object cached:
-		// (we need to use containsKey to cater for updates to NULL)
-		if(_updates.containsKey(prop)) {
-			return (T)_updates.get(prop);
+		// (we need to check the dirty set to cater for updates to NULL)
+		if(isUpdated(prop)) {
+			return (T)_updates[prop.getOrdinal()];
+		}
+		// Foreign keys are retrieved once, through their reference:
+		if(prop.isForeignKey()) {
+			Ref<?> ref = _getRef(prop);
+			return ref == null ? null : (T)ref.get();
 		}
 		// We don't, extract from the Google entity and convert:
 		return prop.toObject(_data.getProperty(prop.getName()));
 	}
 
+	// Returns a lazy reference to the instance the foreign key points to, or null if
+	// the foreign key is not set. The referenced instance is only retrieved on Ref.get.
+	@SuppressWarnings("unchecked")
+	public <T extends Instance<?>> Ref<T> getRef(Property<T> prop) {
+		Checker.checkNull(prop);
+		_checkProperty(prop);
+		if(!prop.isForeignKey()) {
+			throw new IllegalArgumentException(x("property {} is not a foreign key", prop.getFullName()));
+		}
+		if(!isSelected(prop)) {
+			throw new IllegalStateException(x("property {} was not selected", prop.getFullName()));
+		}
+		return (Ref<T>)_getRef(prop);
+	}
+
 	protected <T> void setValue(Property<T> prop, T value) {
 		Checker.checkNull(prop);
 		_checkProperty(prop);
@@ -119,6 +153,9 @@ public abstract class Instance<E extends Entity<?>> {
 		if(prop == getEntity().id) {
 			throw new IllegalArgumentException("cannot set primary key");
 		}
+		if(isProjection()) {
+			throw new IllegalStateException("instances retrieved by projection queries are read-only");
+		}
 		// Validate data type (it should be enforced by the compiler):
 		if(value != null) {
 			if(!prop.getType().isAssignableFrom(value.getClass())) {
@@ -144,24 +181,51 @@ public abstract class Instance<E extends Entity<?>> {
 			throw new AutoGenConstraintException(prop, value);
 		}
 		// Track update:
-		_updates.put(prop,  value);
+		if(_dirty == null) {
+			_updates = new Object[getEntity().getPropertyCount()];
+			_dirty = new BitSet(_updates.length);
+		}
+		_updates[prop.getOrdinal()] = value;
+		_dirty.set(prop.getOrdinal());
 		// Check if the property is being set to its current value:
 		_removeIfNotUpdated(prop, value);
 	}
 
 	public boolean hasUpdates() {
-		return _updates.size() > 0;
+		return _dirty != null && !_dirty.isEmpty();
+	}
+
+	// For Entity:
+	// Returns true if any of the properties with the given ordinals has been updated:
+	boolean hasUpdates(BitSet ordinals) {
+		return _dirty != null && _dirty.intersects(ordinals);
 	}
 	
 	public boolean isPersisted() {
+		return _persisted;
+	}
+
+	// Returns true if the instance has an id, which is the case for persisted instances and
+	// instances whose id has been reserved:
+	public boolean hasId() {
 		return _data.getKey().isComplete();
 	}
+
+	// Returns true if this instance was retrieved by a projection query (see Query.select):
+	public boolean isProjection() {
+		return _projection != null;
+	}
+
+	// Returns true if the property's value is available, i.e. if it has been retrieved:
+	public boolean isSelected(Property<?> prop) {
+		return _projection == null || prop == getEntity().id || Arrays.contains(prop, _projection);
+	}
 	
 	public QueryArg[] getNaturalKeyAsArg() {
 		Property<?>[] props = getEntity().getNaturalKeyProperties();
 		QueryArg[] arg = new QueryArg[props.length];
 		for(int i=0; i<props.length; i++) {
-			arg[i] = new QueryArg(props[i], getValue(props[i]), QueryArg.Operator.EQUAL);
+			arg[i] = new QueryArg(props[i], getPrimitiveValue(props[i]), QueryArg.Operator.EQUAL);
 		}
 		return arg;
 	}
@@ -172,22 +236,55 @@ public abstract class Instance<E extends Entity<?>> {
 	}
 	
 	// For Entity:
-	Set<Map.Entry<Property<?>,Object>> getUpdates() {
-		return new HashMap<>(_updates).entrySet();
+	// Returns the value as stored in the datastore, without retrieving foreign keys:
+	Object getPrimitiveValue(Property<?> prop) {
+		if(prop == getEntity().id) {
+			return getId();
+		}
+		if(isUpdated(prop)) {
+			return prop.toPrimitive(_updates[prop.getOrdinal()]);
+		}
+		return _data.getProperty(prop.getName());
+	}
+
+	// For QueryResult:
+	// Wires an instance retrieved in advance into the foreign key's reference:
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	void setRef(Property<?> prop, Long id, Instance<?> target) {
+		if(isUpdated(prop)) {
+			return;
+		}
+		if(_refs == null) {
+			_refs = new Ref<?>[getEntity().getPropertyCount()];
+		}
+		_refs[prop.getOrdinal()] = new Ref((Entity)prop.getRelatedEntity(), id, target);
 	}
 
 	// For Entity:
-	Set<Property<?>> getUpdatedProperties() {
-		return new HashSet<>(_updates.keySet());
+	// Flushes all pending updates to the Google entity:
+	void flushUpdates() {
+		if(_dirty == null) {
+			return;
+		}
+		Property<?>[] schema = getEntity().getSchema();
+		for(int ordinal = _dirty.nextSetBit(0); ordinal >= 0; ordinal = _dirty.nextSetBit(ordinal+1)) {
+			flush(schema[ordinal], _updates[ordinal]);
+		}
 	}
 
 	// For Entity:
 	void updateFrom(Instance<?> i) {
-		_updates.clear();
-		_updates.putAll(i._updates);
+		if(i._dirty == null) {
+			_updates = null;
+			_dirty = null;
+			return;
+		}
+		_updates = i._updates.clone();
+		_dirty = (BitSet)i._dirty.clone();
 		// Remove any redundant updates:
-		for(Property<?> prop : i._updates.keySet()) {
-			_removeIfNotUpdated(prop, _updates.get(prop));
+		Property<?>[] schema = getEntity().getSchema();
+		for(int ordinal = _dirty.nextSetBit(0); ordinal >= 0; ordinal = _dirty.nextSetBit(ordinal+1)) {
+			_removeIfNotUpdated(schema[ordinal], _updates[ordinal]);
 		}
 	}
 	
@@ -201,42 +298,97 @@ public abstract class Instance<E extends Entity<?>> {
 			_data.setUnindexedProperty(prop.getName(), value);
 		}
 		// Its now safe to clear this update:
-		_updates.remove(prop);
+		_clearUpdate(prop);
+		if(_refs != null) {
+			_refs[prop.getOrdinal()] = null;
+		}
 	}
 
 	// For Entity:
 	boolean isUpdated(Property<?> prop) {
-		return _updates.containsKey(prop);
+		return _dirty != null && _dirty.get(prop.getOrdinal());
+	}
+
+	// For QueryResult:
+	void setProjection(Property<?>[] projection) {
+		_projection = projection;
+	}
+
+	// For Self and Entity:
+	void setPersisted() {
+		_persisted = true;
+	}
+
+	// For Entity:
+	// Gives a new instance a complete key, keeping its values and pending updates:
+	void setKey(Key key) {
+		com.google.appengine.api.datastore.Entity e = new com.google.appengine.api.datastore.Entity(key);
+		e.setPropertiesFrom(_data);
+		_data = e;
 	}
 
 	// For Self and Entity:
 	void setGoogleEntity(com.google.appengine.api.datastore.Entity e) {
-		_updates.clear();
+		_updates = null;
+		_dirty = null;
+		_refs = null;
 		_data = e;
 	}
 	
 	private void _checkProperty(Property<?> prop) {
 		// Check if setting a property that pertains to this entity:
-		if(!getEntity().getProperties().containsValue(prop)) {
+		Property<?>[] schema = getEntity().getSchema();
+		if(prop.getOrdinal() >= schema.length || schema[prop.getOrdinal()] != prop) {
 			throw new IllegalArgumentException(x("property {} cannot be used in entity {}", prop.getFullName(), getEntity().getName()));
 		}
 	}
 
+	// Returns the reference for the foreign key, creating it on first use:
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Ref<?> _getRef(Property<?> prop) {
+		int ordinal = prop.getOrdinal();
+		// Pending updates hold the referenced instance:
+		if(isUpdated(prop)) {
+			Instance<?> target = (Instance<?>)_updates[ordinal];
+			return target == null ? null : new Ref((Entity)prop.getRelatedEntity(), target);
+		}
+		if(_refs != null && _refs[ordinal] != null) {
+			return _refs[ordinal];
+		}
+		Long id = (Long)_data.getProperty(prop.getName());
+		if(id == null) {
+			return null;
+		}
+		if(_refs == null) {
+			_refs = new Ref<?>[getEntity().getPropertyCount()];
+		}
+		_refs[ordinal] = new Ref((Entity)prop.getRelatedEntity(), id);
+		return _refs[ordinal];
+	}
+
+	// Instances can have a complete key before they are persisted (see Entity.reserveIds):
 	private boolean _willUpdate() {
-		return _data.getKey().isComplete();
+		return _persisted;
 	}
 	
 	private void _removeIfNotUpdated(Property<?> prop, Object value) {
 		Object current = _data.getProperty(prop.getName());
 		if(value == null) {
 			if(current == null) {
-				_updates.remove(prop);
+				_clearUpdate(prop);
 			}
 		}
 		else {
 			if(value.equals(current)) {
-				_updates.remove(prop);
+				_clearUpdate(prop);
 			}
 		}
 	}
+
+	private void _clearUpdate(Property<?> prop) {
+		if(_dirty != null) {
+			_dirty.clear(prop.getOrdinal());
+			_updates[prop.getOrdinal()] = null;
+		}
+	}
 }
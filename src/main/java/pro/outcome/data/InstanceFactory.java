@@ -0,0 +1,58 @@
+// All the information contained in this source code file is a property of Outcome Professional Services Limited,
+// a company registered in the United Kingdom. Use and distribution of any part of the information 
+// contained in this source code file without our prior consent is forbidden. If you have an interest 
+// in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
+package pro.outcome.data;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Modifier;
+import pro.outcome.util.ConstructionTargetException;
+import pro.outcome.util.ConstructorInvocationException;
+import pro.outcome.util.ConstructorNotFoundException;
+import pro.outcome.util.ConstructorNotVisibleException;
+
+
+// Creates instances through a method handle to their class's empty constructor. Handles
+// are looked up once per class and cached, and the JIT can inline them, so creating rows
+// costs about the same as calling new. Reflection.createObject looks up the constructor
+// and checks modifiers on every call.
+class InstanceFactory {
+
+	// TYPE:
+	private static final MethodType _EMPTY = MethodType.methodType(void.class);
+	private static final MethodType _CREATE = MethodType.methodType(Object.class);
+	private static final ClassValue<MethodHandle> _constructors = new ClassValue<MethodHandle>() {
+		protected MethodHandle computeValue(Class<?> c) {
+			if(Modifier.isAbstract(c.getModifiers())) {
+				throw new ConstructionTargetException("cannot instantiate an abstract class");
+			}
+			try {
+				return MethodHandles.publicLookup().findConstructor(c, _EMPTY).asType(_CREATE);
+			}
+			catch(NoSuchMethodException nsme) {
+				throw new ConstructorNotFoundException();
+			}
+			catch(IllegalAccessException iae) {
+				throw new ConstructorNotVisibleException(iae);
+			}
+		}
+	};
+
+	public static <I> I create(Class<I> c) {
+		MethodHandle constructor = _constructors.get(c);
+		try {
+			return c.cast((Object)constructor.invokeExact());
+		}
+		catch(Error e) {
+			throw e;
+		}
+		catch(Throwable t) {
+			throw new ConstructorInvocationException(t);
+		}
+	}
+
+	// INSTANCE:
+	private InstanceFactory() {
+	}
+}
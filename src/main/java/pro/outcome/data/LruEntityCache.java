@@ -0,0 +1,96 @@
+// All the information contained in this source code file is a property of Outcome Professional Services Limited,
+// a company registered in the United Kingdom. Use and distribution of any part of the information 
+// contained in this source code file without our prior consent is forbidden. If you have an interest 
+// in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
+package pro.outcome.data;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.HashMap;
+import java.util.Map;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Entity;
+import pro.outcome.util.Checker;
+
+
+// In-process cache that evicts the least recently used entities when full.
+// Note: on App Engine, each application instance keeps its own copy, so this
+// implementation is mostly useful for local testing and single-instance setups.
+public class LruEntityCache implements EntityCache {
+
+	// TYPE:
+	private static final Object _MISSING = new Object();
+
+	// INSTANCE:
+	private final Map<Key,Object> _entities;
+
+	@SuppressWarnings("serial")
+	public LruEntityCache(final int capacity) {
+		Checker.checkMinValue(capacity, 1);
+		_entities = new LinkedHashMap<Key,Object>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Key,Object> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	public synchronized Map<Key,Entity> getAll(Collection<Key> keys) {
+		Checker.checkNull(keys);
+		Map<Key,Entity> result = new HashMap<>();
+		for(Key key : keys) {
+			Object value = _entities.get(key);
+			if(value != null && !(value instanceof _Loading)) {
+				result.put(key, value == _MISSING ? null : ((Entity)value).clone());
+			}
+		}
+		return result;
+	}
+
+	public synchronized void put(Key key, Entity e) {
+		Checker.checkNull(key);
+		_entities.put(key, e == null ? _MISSING : e.clone());
+	}
+
+	public synchronized void putAll(Map<Key,Entity> entities) {
+		Checker.checkNull(entities);
+		for(Map.Entry<Key,Entity> entry : entities.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	public synchronized void removeAll(Collection<Key> keys) {
+		Checker.checkNull(keys);
+		for(Key key : keys) {
+			_entities.remove(key);
+		}
+	}
+
+	public synchronized Object startLoad(Collection<Key> keys) {
+		Checker.checkNull(keys);
+		// Every load gets its own marker, which is replaced by any put or remove:
+		_Loading marker = new _Loading();
+		for(Key key : keys) {
+			Object value = _entities.get(key);
+			if(value == null || value instanceof _Loading) {
+				_entities.put(key, marker);
+			}
+		}
+		return marker;
+	}
+
+	public synchronized void finishLoad(Object handle, Map<Key,Entity> entities) {
+		Checker.checkNull(handle);
+		Checker.checkNull(entities);
+		for(Map.Entry<Key,Entity> entry : entities.entrySet()) {
+			if(_entities.get(entry.getKey()) == handle) {
+				put(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	public synchronized int size() {
+		return _entities.size();
+	}
+
+	private static class _Loading {
+	}
+}
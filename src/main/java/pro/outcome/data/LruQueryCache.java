@@ -0,0 +1,86 @@
+// All the information contained in this source code file is a property of Outcome Professional Services Limited,
+// a company registered in the United Kingdom. Use and distribution of any part of the information 
+// contained in this source code file without our prior consent is forbidden. If you have an interest 
+// in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
+package pro.outcome.data;
+import java.util.LinkedHashMap;
+import java.util.HashMap;
+import java.util.Map;
+import pro.outcome.util.Checker;
+
+
+// In-process query cache that evicts the least recently used results when full.
+// Results also expire, like in MemcacheQueryCache: queries are eventually consistent, so a
+// query that runs right after a write can miss it and cache outdated ids under the new version.
+// Note: on App Engine, each application instance keeps its own versions, so writes
+// made by other instances are not seen. Use MemcacheQueryCache in production.
+public class LruQueryCache implements QueryCache {
+
+	// TYPE:
+	public static final int DEFAULT_EXPIRATION_SECONDS = 60;
+
+	// INSTANCE:
+	private final Map<String,_Result> _results;
+	private final Map<String,Long> _versions;
+	private final long _expirationMillis;
+
+	@SuppressWarnings("serial")
+	public LruQueryCache(final int capacity, int expirationSeconds) {
+		Checker.checkMinValue(capacity, 1);
+		Checker.checkMinValue(expirationSeconds, 1);
+		_results = new LinkedHashMap<String,_Result>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String,_Result> eldest) {
+				return size() > capacity;
+			}
+		};
+		_versions = new HashMap<>();
+		_expirationMillis = expirationSeconds*1000L;
+	}
+
+	public LruQueryCache(int capacity) {
+		this(capacity, DEFAULT_EXPIRATION_SECONDS);
+	}
+
+	public synchronized long getVersion(String entityName) {
+		Checker.checkEmpty(entityName);
+		Long version = _versions.get(entityName);
+		return version == null ? 0 : version;
+	}
+
+	public synchronized void incrementVersion(String entityName) {
+		_versions.put(entityName, getVersion(entityName)+1);
+	}
+
+	public synchronized long[] get(String key) {
+		Checker.checkEmpty(key);
+		_Result result = _results.get(key);
+		if(result == null) {
+			return null;
+		}
+		if(result.expires <= System.currentTimeMillis()) {
+			_results.remove(key);
+			return null;
+		}
+		return result.ids.clone();
+	}
+
+	public synchronized void put(String key, long[] ids) {
+		Checker.checkEmpty(key);
+		Checker.checkNull(ids);
+		_results.put(key, new _Result(ids.clone(), System.currentTimeMillis()+_expirationMillis));
+	}
+
+	public synchronized int size() {
+		return _results.size();
+	}
+
+	private static class _Result {
+		public final long[] ids;
+		public final long expires;
+
+		public _Result(long[] ids, long expires) {
+			this.ids = ids;
+			this.expires = expires;
+		}
+	}
+}
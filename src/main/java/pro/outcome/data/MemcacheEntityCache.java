@@ -0,0 +1,114 @@
+// All the information contained in this source code file is a property of Outcome Professional Services Limited,
+// a company registered in the United Kingdom. Use and distribution of any part of the information 
+// contained in this source code file without our prior consent is forbidden. If you have an interest 
+// in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
+package pro.outcome.data;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.CasValues;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import pro.outcome.util.Checker;
+
+
+// Cache backed by App Engine's memcache, shared by all application instances.
+// Entities are stored in serialized form, so every read returns a fresh copy.
+// Loads add a marker to missing keys and replace it with compare-and-set, which fails
+// if the key has been put or deleted since the marker was read.
+public class MemcacheEntityCache implements EntityCache {
+
+	// TYPE:
+	public static final String DEFAULT_NAMESPACE = "entities";
+	// Memcache needs a serializable value to record missing keys:
+	private static final String _MISSING = "_missing";
+	private static final String _LOADING = "_loading";
+	// Markers of loads that never finish expire quickly, so that the key can be cached again:
+	private static final Expiration _LOADING_EXPIRATION = Expiration.byDeltaSeconds(30);
+
+	// INSTANCE:
+	private final MemcacheService _mc;
+	private final Expiration _expiration;
+
+	public MemcacheEntityCache(String namespace, int expirationSeconds) {
+		Checker.checkEmpty(namespace);
+		Checker.checkMinValue(expirationSeconds, 1);
+		_mc = MemcacheServiceFactory.getMemcacheService(namespace);
+		_expiration = Expiration.byDeltaSeconds(expirationSeconds);
+	}
+
+	public MemcacheEntityCache(int expirationSeconds) {
+		this(DEFAULT_NAMESPACE, expirationSeconds);
+	}
+
+	public Map<Key,Entity> getAll(Collection<Key> keys) {
+		Checker.checkNull(keys);
+		Map<Key,Object> cached = _mc.getAll(keys);
+		Map<Key,Entity> result = new HashMap<>();
+		for(Map.Entry<Key,Object> entry : cached.entrySet()) {
+			Object value = entry.getValue();
+			if(!_LOADING.equals(value)) {
+				result.put(entry.getKey(), _MISSING.equals(value) ? null : (Entity)value);
+			}
+		}
+		return result;
+	}
+
+	public void put(Key key, Entity e) {
+		Checker.checkNull(key);
+		_mc.put(key, e == null ? _MISSING : e, _expiration);
+	}
+
+	public void putAll(Map<Key,Entity> entities) {
+		Checker.checkNull(entities);
+		Map<Key,Object> values = new HashMap<>();
+		for(Map.Entry<Key,Entity> entry : entities.entrySet()) {
+			values.put(entry.getKey(), entry.getValue() == null ? _MISSING : entry.getValue());
+		}
+		_mc.putAll(values, _expiration);
+	}
+
+	public void removeAll(Collection<Key> keys) {
+		Checker.checkNull(keys);
+		_mc.deleteAll(keys);
+	}
+
+	public Object startLoad(Collection<Key> keys) {
+		Checker.checkNull(keys);
+		Map<Key,Object> markers = new HashMap<>();
+		for(Key key : keys) {
+			markers.put(key, _LOADING);
+		}
+		_mc.putAll(markers, _LOADING_EXPIRATION, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+		// Keep the markers, including those added by concurrent loads, to compare them on finishLoad:
+		Map<Key,IdentifiableValue> loading = new HashMap<>();
+		for(Map.Entry<Key,IdentifiableValue> entry : _mc.getIdentifiables(keys).entrySet()) {
+			if(_LOADING.equals(entry.getValue().getValue())) {
+				loading.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return loading;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void finishLoad(Object handle, Map<Key,Entity> entities) {
+		Checker.checkNull(handle);
+		Checker.checkNull(entities);
+		Map<Key,IdentifiableValue> loading = (Map<Key,IdentifiableValue>)handle;
+		Map<Key,CasValues> values = new HashMap<>();
+		for(Map.Entry<Key,Entity> entry : entities.entrySet()) {
+			IdentifiableValue marker = loading.get(entry.getKey());
+			if(marker != null) {
+				values.put(entry.getKey(), new CasValues(marker, entry.getValue() == null ? _MISSING : entry.getValue(), _expiration));
+			}
+		}
+		if(!values.isEmpty()) {
+			_mc.putIfUntouched(values);
+		}
+	}
+}
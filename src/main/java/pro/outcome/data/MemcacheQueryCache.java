@@ -0,0 +1,69 @@
+// All the information contained in this source code file is a property of Outcome Professional Services Limited,
+// a company registered in the United Kingdom. Use and distribution of any part of the information 
+// contained in this source code file without our prior consent is forbidden. If you have an interest 
+// in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
+package pro.outcome.data;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import pro.outcome.util.Checker;
+
+
+// Query cache backed by App Engine's memcache, shared by all application instances.
+// Write versions are kept as memcache counters, which never expire but can be evicted.
+// Evicted counters are seeded again from the current time, scaled so that they start past
+// any version issued before (unless there were more than 1000 writes per millisecond), and
+// results cached under earlier versions are never read again.
+public class MemcacheQueryCache implements QueryCache {
+
+	// TYPE:
+	public static final String DEFAULT_NAMESPACE = "queries";
+	private static final String _VERSION_PREFIX = "version|";
+
+	// INSTANCE:
+	private final MemcacheService _mc;
+	private final Expiration _expiration;
+
+	public MemcacheQueryCache(String namespace, int expirationSeconds) {
+		Checker.checkEmpty(namespace);
+		Checker.checkMinValue(expirationSeconds, 1);
+		_mc = MemcacheServiceFactory.getMemcacheService(namespace);
+		_expiration = Expiration.byDeltaSeconds(expirationSeconds);
+	}
+
+	public MemcacheQueryCache(int expirationSeconds) {
+		this(DEFAULT_NAMESPACE, expirationSeconds);
+	}
+
+	public long getVersion(String entityName) {
+		Checker.checkEmpty(entityName);
+		Object version = _mc.get(_VERSION_PREFIX + entityName);
+		if(version == null) {
+			// Another request can seed the counter in the meantime, so it needs to be read again:
+			_mc.put(_VERSION_PREFIX + entityName, _getSeed(), null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+			version = _mc.get(_VERSION_PREFIX + entityName);
+		}
+		return version == null ? _getSeed() : ((Number)version).longValue();
+	}
+
+	public void incrementVersion(String entityName) {
+		Checker.checkEmpty(entityName);
+		_mc.increment(_VERSION_PREFIX + entityName, 1, _getSeed());
+	}
+
+	private static long _getSeed() {
+		return System.currentTimeMillis()*1000;
+	}
+
+	public long[] get(String key) {
+		Checker.checkEmpty(key);
+		return (long[])_mc.get(key);
+	}
+
+	public void put(String key, long[] ids) {
+		Checker.checkEmpty(key);
+		Checker.checkNull(ids);
+		_mc.put(key, ids, _expiration);
+	}
+}
@@ -0,0 +1,28 @@
+// All the information contained in this source code file is a property of Outcome Professional Services Limited,
+// a company registered in the United Kingdom. Use and distribution of any part of the information 
+// contained in this source code file without our prior consent is forbidden. If you have an interest 
+// in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
+package pro.outcome.data;
+import pro.outcome.util.Checker;
+
+
+// Placeholder for a query value that is only known when the query runs. Queries with
+// parameters are compiled once with Query.compile and then run with the bound values,
+// in the order their parameters were added to the query.
+public final class Param<T> {
+
+	private final String _name;
+
+	public Param(String name) {
+		Checker.checkEmpty(name);
+		_name = name;
+	}
+
+	public String getName() {
+		return _name;
+	}
+
+	public String toString() {
+		return ":" + _name;
+	}
+}
@@ -3,6 +3,7 @@
 // contained in this source code file without our prior consent is forbidden. If you have an interest 
 // in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
 package pro.outcome.data;
+import java.util.Collection;
 import pro.outcome.util.Arrays;
 import pro.outcome.util.IntegrityException;
 import static pro.outcome.util.Shortcuts.*;
@@ -12,11 +13,16 @@ import static pro.outcome.util.Shortcuts.*;
 public class Property<T> {
 
 	// TODO add IGNORE_CASE constraint
+	// UNIQUE is enforced through an index of the values in use (see UniqueIndex). Entities that
+	// already have rows when a property becomes unique need Entity.rebuildUniqueIndex to run once.
+	// Until then, values that are not in the index are also checked with a query on every write.
 	public enum Constraint { MANDATORY, READ_ONLY, UNIQUE, AUTO_GENERATED };
 	public enum OnDelete { CASCADE, RESTRICT, SET_NULL };
 	private final Entity<?> _parent;
 	private final Class<T> _type;
 	private final String _name;
+	// Position of this property in its entity's schema:
+	private final int _ordinal;
 	private final ValueGenerator<T> _default;
 	private final boolean _indexed;
 	private final boolean _mandatory;
@@ -28,9 +34,10 @@ public class Property<T> {
 	private Entity<?> _related;
 
 	// For Entity:
-	Property(Entity<?> parent, Class<T> cl, String name, boolean indexed, ValueGenerator<T> def, OnDelete onDelete, Constraint ... constraints) {
+	Property(Entity<?> parent, int ordinal, Class<T> cl, String name, boolean indexed, ValueGenerator<T> def, OnDelete onDelete, Constraint ... constraints) {
 		// Note: null and empty checks are carried out on Entity.addProperty 
 		_parent = parent;
+		_ordinal = ordinal;
 		_type = cl;
 		_name = name;
 		_indexed = indexed;
@@ -42,8 +49,8 @@ public class Property<T> {
 		_foreignKey = Instance.class.isAssignableFrom(cl);
 		_onDelete = onDelete;
 		// Extra checks:
-		if(_autoGenerated && def != null) {
-			throw new IllegalArgumentException("properties with auto-generated constraints cannot have a default value");
+		if(_autoGenerated && def instanceof Generators.Direct) {
+			throw new IllegalArgumentException("properties with auto-generated constraints cannot have a default value (use a generator instead)");
 		}
 		if(_foreignKey) {
 			if(_onDelete == null) {
@@ -71,14 +78,23 @@ public class Property<T> {
 		return _name;
 	}
 	
+	public int getOrdinal() {
+		return _ordinal;
+	}
+
 	public String getFullName() {
 		return getEntity().getName()+'.'+getName();
 	}
 	
+	// Returns the default value, or a newly generated value for auto-generated properties:
 	public T getDefaultValue() {
 		return _default == null ? null : _default.generate();
 	}
 
+	public boolean hasGenerator() {
+		return _default != null && !(_default instanceof Generators.Direct);
+	}
+
 	public boolean isIndexed() {
 		return _indexed;
 	}
@@ -103,6 +119,27 @@ public class Property<T> {
 		return _foreignKey;
 	}
 	
+	// Returns the type of the values stored in the datastore, or null if it can't be determined:
+	public Class<?> getPrimitiveType() {
+		if(_type.isEnum()) {
+			return String.class;
+		}
+		if(_foreignKey) {
+			return Long.class;
+		}
+		// The datastore stores all integers as Long and all decimals as Double:
+		if(_type == Integer.class || _type == Short.class || _type == Byte.class) {
+			return Long.class;
+		}
+		if(_type == Float.class) {
+			return Double.class;
+		}
+		if(_type == Object.class) {
+			return null;
+		}
+		return _type;
+	}
+
 	public Entity<?> getRelatedEntity() {
 		return _related;
 	}
@@ -119,6 +156,23 @@ public class Property<T> {
 		return new QueryArg(this, value, QueryArg.Operator.NOT_EQUAL);
 	}
 
+	public QueryArg isIn(Collection<? extends T> values) {
+		return new QueryArg(this, values, QueryArg.Operator.IN);
+	}
+
+	public QueryArg isEqualTo(Param<T> param) {
+		return new QueryArg(this, param, QueryArg.Operator.EQUAL);
+	}
+
+	public QueryArg isNotEqualTo(Param<T> param) {
+		return new QueryArg(this, param, QueryArg.Operator.NOT_EQUAL);
+	}
+
+	// The parameter must be bound to a collection of values:
+	public QueryArg isIn(Param<? extends Collection<? extends T>> param) {
+		return new QueryArg(this, param, QueryArg.Operator.IN);
+	}
+
 	public String toString() {
 		return getFullName();
 	}
@@ -147,9 +201,10 @@ public class Property<T> {
 				return value;
 			}
 			Instance<?> i = (Instance<?>)value;
-			// Validate that foreign instance key is set:
-			if(!i.isPersisted()) {
-				throw new IllegalStateException(x("foreign entity [{}] has not been persisted", i));
+			// Validate that foreign instance key is set. The instance itself can be persisted later,
+			// e.g. in the same batch, if its id has been reserved:
+			if(!i.hasId()) {
+				throw new IllegalStateException(x("foreign entity [{}] has not been persisted and has no reserved id", i));
 			}
 			return i.getId();
 		}
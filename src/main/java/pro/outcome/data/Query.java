@@ -1,21 +1,32 @@
 package pro.outcome.data;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.Future;
+import com.google.appengine.api.datastore.BaseDatastoreService;
 import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.QueryResultList;
 import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Query.CompositeFilter;
 import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
 import com.google.appengine.api.datastore.Query.Filter;
 import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.Query.SortPredicate;
 
 import pro.outcome.data.QueryArg.Operator;
+import pro.outcome.util.Arrays;
 import pro.outcome.util.Checker;
 import static pro.outcome.util.Shortcuts.*;
 
 
 public class Query<I extends Instance<?>> {
 
+	// TYPE:
+	// Number of keys retrieved per round trip when counting:
+	public static final int COUNT_CHUNK_SIZE = 1000;
+
+	// INSTANCE:
 	private final Entity<I> _entity;
 	private final List<QueryArg> _args;
 	private final com.google.appengine.api.datastore.Query _query;
@@ -24,6 +35,9 @@ public class Query<I extends Instance<?>> {
 	private String _position;
 	private int _fetchSize;
 	private QueryArg _inequality;
+	private Property<?>[] _projection;
+	private Property<?>[] _includes;
+	private QueryCache _queryCache;
 
 	public Query(Entity<I> entity) {
 		Checker.checkNull(entity);
@@ -35,6 +49,9 @@ public class Query<I extends Instance<?>> {
 		_position = null;
 		_fetchSize = 100;
 		_inequality = null;
+		_projection = null;
+		_includes = null;
+		_queryCache = entity.getQueryCache();
 	}
 	
 	public String toString() {
@@ -51,7 +68,7 @@ public class Query<I extends Instance<?>> {
 				throw new IllegalArgumentException("cannot use 'id' property in multiple result query. Use findSingle instead.");
 			}
 			// All inequality filters must apply to the same property:
-			if(arg.getOperator() != Operator.EQUAL) {
+			if(arg.getOperator() != Operator.EQUAL && arg.getOperator() != Operator.IN) {
 				if(_inequality == null) {
 					_inequality = arg;
 				}
@@ -66,6 +83,53 @@ public class Query<I extends Instance<?>> {
 		return this;
 	}
 	
+	// Turns this into a projection query, which only retrieves the given properties. Results are
+	// read-only instances that fail when reading properties that have not been selected.
+	public Query<I> select(Property<?> ... props) {
+		Checker.checkEmpty(props);
+		Checker.checkNullElements(props);
+		Checker.checkDuplicateElements(props);
+		if(_projection != null) {
+			throw new IllegalStateException("properties have already been selected");
+		}
+		for(Property<?> p : props) {
+			if(p.getEntity() != _entity) {
+				throw new IllegalArgumentException(x("property {} cannot be selected from entity {}", p.getFullName(), _entity.getName()));
+			}
+			if(p == _entity.id) {
+				throw new IllegalArgumentException("the 'id' property is always selected");
+			}
+			if(!p.isIndexed()) {
+				throw new IllegalArgumentException(x("{}: cannot select non-indexed properties", p.getName()));
+			}
+			_query.addProjection(new PropertyProjection(p.getName(), p.getPrimitiveType()));
+		}
+		_projection = props;
+		return this;
+	}
+
+	// Retrieves the instances that the given foreign keys point to along with the results,
+	// with one batch get per related entity for each chunk of results, instead of one get
+	// per result when the foreign keys are read.
+	public Query<I> include(Property<?> ... fks) {
+		Checker.checkEmpty(fks);
+		Checker.checkNullElements(fks);
+		Checker.checkDuplicateElements(fks);
+		if(_includes != null) {
+			throw new IllegalStateException("foreign keys have already been included");
+		}
+		for(Property<?> fk : fks) {
+			if(fk.getEntity() != _entity) {
+				throw new IllegalArgumentException(x("property {} cannot be included in a query for entity {}", fk.getFullName(), _entity.getName()));
+			}
+			if(!fk.isForeignKey()) {
+				throw new IllegalArgumentException(x("{}: only foreign keys can be included", fk.getName()));
+			}
+		}
+		_includes = fks;
+		return this;
+	}
+
 	public Query<I> addSortByAsc(Property<?> p) {
 		return _addSortBy(p, SortDirection.ASCENDING);
 	}
@@ -92,6 +156,14 @@ public class Query<I extends Instance<?>> {
 		return this;
 	}
 
+	// Caches the ids of the results on the given cache, or disables caching if null. By
+	// default, queries use their entity's query cache. Projection queries and queries that
+	// save their position are never cached.
+	public Query<I> setQueryCache(QueryCache cache) {
+		_queryCache = cache;
+		return this;
+	}
+
 	public int getFetchSize() {
 		return _fetchSize;
 	}
@@ -102,30 +174,177 @@ public class Query<I extends Instance<?>> {
 		return this;
 	}
 	
+	// Validates the query and builds its filters once, returning an immutable query that can be
+	// run many times, concurrently. This is also the only way to run queries with parameters.
+	public CompiledQuery<I> compile() {
+		_checkProjection();
+		return new CompiledQuery<I>(_entity, _args, _query.getSortPredicates(), _projection, _includes, _limit, _fetchSize, _savePosition, _queryCache);
+	}
+
 	public QueryResult<I> run() {
-		// Prepare query:
-		if(_args.size() > 0) {
-			List<Filter> filters = new ArrayList<>(_args.size());
-			for(QueryArg arg : _args) {
-				filters.add(arg.toFilter());
+		PreparedQuery pq = _prepare(_entity.getDatastoreService());
+		// Return wrapper:
+		_entity.getLogger().log(info("running query: {}", pq));
+		PreparedQuery async = _entity.getAsyncDatastoreService().prepare(null, _query);
+		return new QueryResult<I>(_entity.getInstanceClass(), pq, async, prepareKeysOnly(), _getFetchOptions(), _savePosition, _projection, _includes, _getCachedQuery());
+	}
+
+	// Returns the ids of the matching instances, without retrieving the instances themselves:
+	public long[] keysOnly() {
+		CachedQuery<I> cached = _getCachedQuery();
+		if(cached != null) {
+			return cached.getIds();
+		}
+		PreparedQuery pq = prepareKeysOnly();
+		_entity.getLogger().log(info("running keys-only query: {}", pq));
+		return QueryResult.toIds(pq, _getFetchOptions());
+	}
+
+	// Counts the matching instances with a keys-only query, in chunks of COUNT_CHUNK_SIZE keys:
+	public int count() {
+		PreparedQuery pq = prepareKeysOnly();
+		_entity.getLogger().log(info("running count query: {}", pq));
+		Cursor cursor = _position == null ? null : QueryStream.getCursor(_position);
+		int offset = _position == null ? 0 : QueryStream.getOffset(_position);
+		int count = 0;
+		while(true) {
+			int chunkSize = _limit == -1 ? COUNT_CHUNK_SIZE : Math.min(COUNT_CHUNK_SIZE, _limit-count);
+			if(chunkSize == 0) {
+				return count;
+			}
+			FetchOptions options = FetchOptions.Builder.withLimit(chunkSize).chunkSize(chunkSize);
+			if(cursor != null) {
+				options.startCursor(cursor);
+			}
+			if(offset > 0) {
+				options.offset(offset);
+				offset = 0;
 			}
-			Filter f = filters.size() > 1 ? new CompositeFilter(CompositeFilterOperator.AND, filters) : filters.get(0);
+			QueryResultList<com.google.appengine.api.datastore.Entity> list = pq.asQueryResultList(options);
+			count += list.size();
+			if(list.size() < chunkSize) {
+				return count;
+			}
+			cursor = list.getCursor();
+		}
+	}
+
+	// Starts fetching the results in the background, and only waits for them when they are requested.
+	// Note: the position is not saved on asynchronous queries.
+	public Future<List<I>> runAsync() {
+		PreparedQuery pq = _prepare(_entity.getAsyncDatastoreService());
+		_entity.getLogger().log(info("running async query: {}", pq));
+		final List<com.google.appengine.api.datastore.Entity> entities = pq.asList(_getFetchOptions());
+		final Class<I> type = _entity.getInstanceClass();
+		final Property<?>[] projection = _projection;
+		final Property<?>[] includes = _includes;
+		return new FutureAdapter<Void,List<I>>(null) {
+			protected List<I> convert(Void source) {
+				// Fetch the whole result set, so that datastore errors surface here rather than
+				// while the caller iterates over the instances:
+				entities.size();
+				List<I> instances = QueryResult.toInstances(type, entities, projection);
+				ForeignKeyLoader.include(instances, includes);
+				return instances;
+			}
+		};
+	}
+	
+	// For Entity:
+	PreparedQuery prepareKeysOnly() {
+		com.google.appengine.api.datastore.Query q = new com.google.appengine.api.datastore.Query(_entity.getName());
+		Filter f = _getFilter();
+		if(f != null) {
+			q.setFilter(f);
+		}
+		for(SortPredicate sort : _query.getSortPredicates()) {
+			q.addSort(sort.getPropertyName(), sort.getDirection());
+		}
+		q.setKeysOnly();
+		return _entity.getDatastoreService().prepare(null, q);
+	}
+
+	private PreparedQuery _prepare(BaseDatastoreService ds) {
+		_checkProjection();
+		Filter f = _getFilter();
+		if(f != null) {
 			_query.setFilter(f);
 		}
-		PreparedQuery pq = _entity.getDatastoreService().prepare(_query);
-		// Prepare fetch options:
-		FetchOptions options = FetchOptions.Builder.withChunkSize(_fetchSize);
-		if(_limit != -1) {
-			options.limit(_limit);
+		// Queries always run outside of the current transaction, if any, since the datastore
+		// only allows ancestor queries in transactions (see Entity.transact):
+		return ds.prepare(null, _query);
+	}
+
+	private CachedQuery<I> _getCachedQuery() {
+		if(_queryCache == null || _projection != null || _savePosition) {
+			return null;
 		}
-		if(_position != null) {
-			options.startCursor(Cursor.fromWebSafeString(_position));
+		List<Filter> filters = new ArrayList<>(_args.size());
+		for(QueryArg arg : _args) {
+			filters.add(arg.toFilter());
 		}
-		// Return wrapper:
-		_entity.getLogger().log(info("running query: {}", pq));
-		return new QueryResult<I>(_entity.getInstanceClass(), pq, options, _savePosition);
+		String normalized = CachedQuery.normalize(_entity, filters, _query.getSortPredicates(), _limit, _position);
+		return new CachedQuery<I>(_entity, _queryCache, normalized, prepareKeysOnly(), _getFetchOptions());
 	}
-	
+
+	// Properties with equality filters cannot be projected, and included ones must be selected:
+	private void _checkProjection() {
+		if(_projection != null) {
+			if(_includes != null) {
+				for(Property<?> fk : _includes) {
+					if(!Arrays.contains(fk, _projection)) {
+						throw new IllegalArgumentException(x("{}: cannot include foreign keys that are not selected", fk.getName()));
+					}
+				}
+			}
+			for(QueryArg arg : _args) {
+				if(arg.getOperator() == Operator.EQUAL && Arrays.contains(arg.getProperty(), _projection)) {
+					throw new IllegalArgumentException(x("{}: cannot select properties with equality filters", arg.getProperty().getName()));
+				}
+			}
+		}
+	}
+
+	// For CompiledQuery:
+	static FetchOptions getFetchOptions(int fetchSize, int limit, String position) {
+		FetchOptions options = FetchOptions.Builder.withChunkSize(fetchSize);
+		if(limit != -1) {
+			options.limit(limit);
+		}
+		if(position != null) {
+			// Positions from QueryStream may carry an offset from the cursor:
+			Cursor cursor = QueryStream.getCursor(position);
+			if(cursor != null) {
+				options.startCursor(cursor);
+			}
+			int offset = QueryStream.getOffset(position);
+			if(offset > 0) {
+				options.offset(offset);
+			}
+		}
+		return options;
+	}
+
+	// For CompiledQuery:
+	static Filter and(List<Filter> filters) {
+		if(filters.isEmpty()) {
+			return null;
+		}
+		return filters.size() > 1 ? new CompositeFilter(CompositeFilterOperator.AND, filters) : filters.get(0);
+	}
+
+	private FetchOptions _getFetchOptions() {
+		return getFetchOptions(_fetchSize, _limit, _position);
+	}
+
+	private Filter _getFilter() {
+		List<Filter> filters = new ArrayList<>(_args.size());
+		for(QueryArg arg : _args) {
+			filters.add(arg.toFilter());
+		}
+		return and(filters);
+	}
+
 	private Query<I> _addSortBy(Property<?> p, SortDirection direction) {
 		Checker.checkNull(p);
 		if(p.getEntity() != _entity) {
@@ -3,6 +3,9 @@
 // contained in this source code file without our prior consent is forbidden. If you have an interest 
 // in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
 package pro.outcome.data;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.Query.FilterPredicate;
 import pro.outcome.util.IntegrityException;
@@ -12,7 +15,9 @@ import static pro.outcome.util.Shortcuts.*;
 public class QueryArg {
 
 	// TYPE:
-	public static enum Operator { EQUAL, NOT_EQUAL, GREATER_THAN };
+	public static enum Operator { EQUAL, NOT_EQUAL, GREATER_THAN, IN };
+	// Maximum number of values the datastore accepts on an IN filter:
+	public static final int MAX_IN_VALUES = 30;
 	
 	// INSTANCE:
 	private final Property<?> _property;
@@ -24,6 +29,15 @@ public class QueryArg {
 		if(!property.isIndexed()) {
 			throw new IllegalArgumentException(x("cannot query property {} because it is not indexed", property.getFullName()));
 		}
+		if(op == Operator.IN && !(value instanceof Param)) {
+			if(!(value instanceof Collection)) {
+				throw new IllegalArgumentException("IN operator requires a collection of values");
+			}
+			int size = ((Collection<?>)value).size();
+			if(size == 0 || size > MAX_IN_VALUES) {
+				throw new IllegalArgumentException(x("IN operator requires between 1 and {} values, found {}", MAX_IN_VALUES, size));
+			}
+		}
 		_property = property;
 		_value = value;
 		_op = op;
@@ -40,6 +54,10 @@ public class QueryArg {
 	public Operator getOperator() {
 		return _op;
 	}
+
+	public boolean isParameter() {
+		return _value instanceof Param;
+	}
 	
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
@@ -53,8 +71,30 @@ public class QueryArg {
 		return sb.toString();
 	}
 
+	// For CompiledQuery:
+	// Returns a copy of this argument with the parameter replaced by the given value:
+	QueryArg bind(Object value) {
+		if(!isParameter()) {
+			throw new IllegalStateException(x("{} does not have a parameter", this));
+		}
+		if(value instanceof Param) {
+			throw new IllegalArgumentException(x("{}: cannot bind a parameter to another parameter", _value));
+		}
+		return new QueryArg(_property, value, _op);
+	}
+
 	// For Facade:
 	FilterPredicate toFilter() {
+		if(isParameter()) {
+			throw new IllegalStateException(x("parameter {} is not bound. Use Query.compile to run queries with parameters", _value));
+		}
+		if(_op == Operator.IN) {
+			List<Object> values = new ArrayList<>();
+			for(Object value : (Collection<?>)_value) {
+				values.add(_property.toPrimitive(value));
+			}
+			return new FilterPredicate(_property.getName(), FilterOperator.IN, values);
+		}
 		return new FilterPredicate(_property.getName(), _getOperator(), _property.toPrimitive(_value));
 	}
 	
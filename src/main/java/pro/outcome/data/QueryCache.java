@@ -0,0 +1,25 @@
+// All the information contained in this source code file is a property of Outcome Professional Services Limited,
+// a company registered in the United Kingdom. Use and distribution of any part of the information 
+// contained in this source code file without our prior consent is forbidden. If you have an interest 
+// in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
+package pro.outcome.data;
+
+
+// Caches the ids that queries return, keyed by a normalized form of each query. Cached ids
+// are scoped to a write version of their entity, which every insert, update and delete on
+// the entity increments, so that a write invalidates all cached results for the entity.
+// Implementations must expire results: queries are eventually consistent, so ids cached right
+// after a write may not reflect it, and the version only changes on the next write.
+public interface QueryCache {
+
+	// Returns the current write version of the entity, or zero if it has not been written yet:
+	public long getVersion(String entityName);
+
+	// Increments the write version of the entity:
+	public void incrementVersion(String entityName);
+
+	// Returns the ids cached under the key, or null if there are none:
+	public long[] get(String key);
+
+	public void put(String key, long[] ids);
+}
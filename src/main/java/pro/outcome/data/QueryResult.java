@@ -1,7 +1,11 @@
 package pro.outcome.data;
 import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Entity;
@@ -13,34 +17,97 @@ public class QueryResult<I extends Instance<?>> {
 
 	private final Class<I> _type;
 	private final PreparedQuery _pq;
+	private final PreparedQuery _async;
+	private final PreparedQuery _keysOnly;
 	private final FetchOptions _options;
 	private final boolean _savePosition;
+	private final Property<?>[] _projection;
+	// Not null when the results come from the query cache:
+	private final CachedQuery<I> _cached;
+	// Foreign keys to retrieve in batches for each chunk of results, or null:
+	private final Property<?>[] _includes;
 	private QueryResultList<Entity> _list;
 	private boolean _positionRetrieved;
 
 	// For Query:
-	QueryResult(Class<I> type, PreparedQuery pq, FetchOptions options, boolean savePosition) {
+	QueryResult(Class<I> type, PreparedQuery pq, PreparedQuery async, PreparedQuery keysOnly, FetchOptions options, boolean savePosition, Property<?>[] projection, Property<?>[] includes, CachedQuery<I> cached) {
 		_type = type;
 		_pq = pq;
+		_async = async;
+		_keysOnly = keysOnly;
 		_options = options;
 		_savePosition = savePosition;
+		_projection = projection;
+		_cached = cached;
+		_includes = includes;
 		_list = null;
 		_positionRetrieved = false;
 	}
 	
+	// For Query and QueryStream:
+	static <I extends Instance<?>> List<I> toInstances(Class<I> type, List<Entity> entities, Property<?>[] projection) {
+		return new _InstanceList<I>(type, entities, projection);
+	}
+
+	// For Self and Query:
+	static long[] toIds(PreparedQuery keysOnly, FetchOptions options) {
+		long[] ids = new long[options.getLimit() == null ? options.getChunkSize() : Math.min(options.getLimit(), options.getChunkSize())];
+		int size = 0;
+		for(Entity e : keysOnly.asIterable(options)) {
+			if(size == ids.length) {
+				ids = Arrays.copyOf(ids, ids.length*2);
+			}
+			ids[size++] = e.getKey().getId();
+		}
+		return Arrays.copyOf(ids, size);
+	}
+
+	private static <I extends Instance<?>> I _newInstance(Class<I> type, Entity e, Property<?>[] projection) {
+		I i = Instance.newFrom(type, e);
+		if(projection != null) {
+			i.setProjection(projection);
+		}
+		return i;
+	}
+
 	public Iterator<I> iterate() {
-		if(_savePosition) {
+		if(_savePosition || _cached != null) {
 			return list().iterator();
 		}
-		return new _InstanceIterator(_pq.asIterator(_options));
+		return new _InstanceIterator(_pq.asIterator(_options), _options.getChunkSize());
 	}
 	
+	// Streams the results one chunk of fetch size at a time, fetching the next chunk in the
+	// background. Unlike iterate, the position can be retrieved from the stream at any point.
+	// Note: streams always run the query, bypassing the query cache.
+	public QueryStream<I> stream() {
+		Integer limit = _options.getLimit();
+		Integer offset = _options.getOffset();
+		return new QueryStream<I>(_type, _async, _options.getStartCursor(), offset == null ? 0 : offset, _options.getChunkSize(), limit == null ? -1 : limit, _projection, _includes);
+	}
+
+	// Returns the ids of the results with a keys-only query, without retrieving the instances:
+	public long[] ids() {
+		if(_cached != null) {
+			return _cached.getIds();
+		}
+		return toIds(_keysOnly, _options);
+	}
+
 	public List<I> list() {
-		if(_savePosition) {
+		List<I> list;
+		if(_cached != null) {
+			list = _cached.getInstances();
+		}
+		else if(_savePosition) {
 			_list = _pq.asQueryResultList(_options);
-			return new _InstanceList(_list);
+			list = new _InstanceList<I>(_type, _list, _projection);
 		}
-		return new _InstanceList(_pq.asList(_options));
+		else {
+			list = new _InstanceList<I>(_type, _pq.asList(_options), _projection);
+		}
+		ForeignKeyLoader.include(list, _includes);
+		return list;
 	}
 	
 	public String getPosition() {
@@ -58,35 +125,60 @@ public class QueryResult<I extends Instance<?>> {
 		return _list.getCursor().toWebSafeString();
 	}
 
-	// Converts from Iterator<Entity> to Iterator<I>:
+	// Converts from Iterator<Entity> to Iterator<I>, one chunk at a time, so that
+	// foreign keys can be included for the whole chunk:
 	private class _InstanceIterator implements Iterator<I> {
 		
 		private final Iterator<Entity> _source;
+		private final int _chunkSize;
+		private Iterator<I> _chunk;
 		
-		public _InstanceIterator(Iterator<Entity> source) {
+		public _InstanceIterator(Iterator<Entity> source, int chunkSize) {
 			_source = source;
+			_chunkSize = chunkSize;
+			_chunk = Collections.<I>emptyList().iterator();
 		}
 		
 		public boolean hasNext() {
-			return _source.hasNext();
+			if(_chunk.hasNext()) {
+				return true;
+			}
+			if(!_source.hasNext()) {
+				return false;
+			}
+			List<Entity> entities = new ArrayList<>(_chunkSize);
+			while(entities.size() < _chunkSize && _source.hasNext()) {
+				entities.add(_source.next());
+			}
+			List<I> chunk = new _InstanceList<I>(_type, entities, _projection);
+			ForeignKeyLoader.include(chunk, _includes);
+			_chunk = chunk.iterator();
+			return true;
 		}
 
 		public void remove() {
-			_source.remove();
+			throw new UnsupportedOperationException();
 		}
 		
 		public I next() {
-			return Instance.newFrom(_type, _source.next());
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return _chunk.next();
 		}
 	}
 	
-	private class _InstanceList extends AbstractList<I> {
+	private static class _InstanceList<I extends Instance<?>> extends AbstractList<I> {
 		
+		private final Class<I> _type;
 		private final List<Entity> _source;
+		private final Property<?>[] _projection;
 		private final Object[] _cache;
 		
-		public _InstanceList(List<Entity> source) {
+		public _InstanceList(Class<I> type, List<Entity> source, Property<?>[] projection) {
+			_type = type;
 			_source = source;
+			_projection = projection;
 			_cache = new Object[_source.size()];
 		}
 		
@@ -99,7 +191,7 @@ public class QueryResult<I extends Instance<?>> {
 			if(_cache[index] != null) {
 				return (I)_cache[index];
 			}
-			I i = Instance.newFrom(_type, _source.get(index));
+			I i = _newInstance(_type, _source.get(index), _projection);
 			_cache[index] = i;
 			return i;
 		}
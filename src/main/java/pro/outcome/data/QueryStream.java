@@ -0,0 +1,158 @@
+// All the information contained in this source code file is a property of Outcome Professional Services Limited,
+// a company registered in the United Kingdom. Use and distribution of any part of the information 
+// contained in this source code file without our prior consent is forbidden. If you have an interest 
+// in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
+package pro.outcome.data;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.QueryResultList;
+
+
+// Iterates over query results one chunk at a time. As soon as a chunk arrives, the next
+// one is requested in the background, so that fetching overlaps with processing. The
+// position of the next result can be retrieved at any point, to resume the scan later.
+public class QueryStream<I extends Instance<?>> implements Iterator<I> {
+
+	// TYPE:
+	// Separates the cursor from the offset in positions:
+	static final char POSITION_SEPARATOR = ':';
+
+	// For Query:
+	static Cursor getCursor(String position) {
+		int sep = position.indexOf(POSITION_SEPARATOR);
+		String cursor = sep == -1 ? position : position.substring(0, sep);
+		return cursor.isEmpty() ? null : Cursor.fromWebSafeString(cursor);
+	}
+	
+	// For Query:
+	static int getOffset(String position) {
+		int sep = position.indexOf(POSITION_SEPARATOR);
+		return sep == -1 ? 0 : Integer.parseInt(position.substring(sep+1));
+	}
+
+	// INSTANCE:
+	private final Class<I> _type;
+	private final PreparedQuery _pq;
+	private final int _fetchSize;
+	private final int _limit;
+	private final Property<?>[] _projection;
+	private final Property<?>[] _includes;
+	// Cursor and offset where the current chunk starts:
+	private Cursor _start;
+	private int _startOffset;
+	private QueryResultList<Entity> _current;
+	// Instances of the current chunk, created when its first result is read:
+	private List<I> _rows;
+	private int _requested;
+	private int _index;
+	// Number of results in the chunks before the current one:
+	private int _returned;
+	private QueryResultList<Entity> _next;
+	private int _nextRequested;
+
+	// For QueryResult:
+	QueryStream(Class<I> type, PreparedQuery pq, Cursor start, int offset, int fetchSize, int limit, Property<?>[] projection, Property<?>[] includes) {
+		_type = type;
+		_pq = pq;
+		_fetchSize = fetchSize;
+		_limit = limit;
+		_projection = projection;
+		_includes = includes;
+		_start = start;
+		_startOffset = offset;
+		_requested = _getChunkSize(0);
+		_current = _requested == 0 ? null : _fetch(start, offset, _requested);
+		_rows = null;
+		_index = 0;
+		_returned = 0;
+		_next = null;
+		_nextRequested = 0;
+	}
+
+	public boolean hasNext() {
+		if(_current == null) {
+			return false;
+		}
+		// Note: size waits for the current chunk to arrive.
+		if(_index < _current.size()) {
+			_prefetch();
+			return true;
+		}
+		_prefetch();
+		if(_next == null) {
+			// No more results:
+			_current = null;
+			return false;
+		}
+		_returned += _current.size();
+		_start = _current.getCursor();
+		_startOffset = 0;
+		_current = _next;
+		_rows = null;
+		_requested = _nextRequested;
+		_index = 0;
+		_next = null;
+		return hasNext();
+	}
+
+	public I next() {
+		if(!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		if(_rows == null) {
+			_rows = QueryResult.toInstances(_type, _current, _projection);
+			ForeignKeyLoader.include(_rows, _includes);
+		}
+		return _rows.get(_index++);
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	// Returns the position of the next result, which can be passed to Query.setPosition
+	// to resume the scan from there, or null if there are no more results.
+	public String getPosition() {
+		if(!hasNext()) {
+			return null;
+		}
+		String cursor = _start == null ? "" : _start.toWebSafeString();
+		int offset = _startOffset + _index;
+		if(offset == 0 && !cursor.isEmpty()) {
+			return cursor;
+		}
+		return cursor + POSITION_SEPARATOR + offset;
+	}
+
+	// Requests the next chunk once the current one has arrived, if there can be more results:
+	private void _prefetch() {
+		if(_next != null || _current.size() < _requested) {
+			return;
+		}
+		_nextRequested = _getChunkSize(_returned + _current.size());
+		if(_nextRequested > 0) {
+			_next = _fetch(_current.getCursor(), 0, _nextRequested);
+		}
+	}
+
+	private int _getChunkSize(int returned) {
+		return _limit == -1 ? _fetchSize : Math.min(_fetchSize, _limit - returned);
+	}
+
+	private QueryResultList<Entity> _fetch(Cursor cursor, int offset, int size) {
+		FetchOptions options = FetchOptions.Builder.withLimit(size).chunkSize(size).prefetchSize(size);
+		if(cursor != null) {
+			options.startCursor(cursor);
+		}
+		if(offset > 0) {
+			options.offset(offset);
+		}
+		// Note: queries prepared on the async datastore service return immediately.
+		return _pq.asQueryResultList(options);
+	}
+}
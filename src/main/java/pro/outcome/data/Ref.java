@@ -0,0 +1,87 @@
+// All the information contained in this source code file is a property of Outcome Professional Services Limited,
+// a company registered in the United Kingdom. Use and distribution of any part of the information 
+// contained in this source code file without our prior consent is forbidden. If you have an interest 
+// in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
+package pro.outcome.data;
+import pro.outcome.util.Checker;
+
+
+// Lazy reference to the instance a foreign key points to. The id is available straight
+// away, and the instance is only retrieved on the first call to get, after which it is
+// remembered. Instances keep the references of their foreign keys (see Instance.getRef).
+public final class Ref<I extends Instance<?>> {
+
+	private final Entity<I> _entity;
+	private final Long _id;
+	private I _target;
+	private boolean _loaded;
+
+	// For Instance:
+	Ref(Entity<I> entity, Long id) {
+		_entity = entity;
+		_id = id;
+		_target = null;
+		_loaded = false;
+	}
+
+	// For Instance:
+	// Creates a reference to an instance that is already available:
+	Ref(Entity<I> entity, I target) {
+		Checker.checkNull(target);
+		_entity = entity;
+		_id = target.hasId() ? target.getId() : null;
+		_target = target;
+		_loaded = true;
+	}
+
+	// For Instance:
+	// Creates a reference whose instance has already been retrieved, or found missing if null:
+	Ref(Entity<I> entity, Long id, I target) {
+		_entity = entity;
+		_id = id;
+		_target = target;
+		_loaded = true;
+	}
+
+	public Entity<I> getEntity() {
+		return _entity;
+	}
+
+	// Returns the id of the referenced instance, without retrieving it:
+	public Long getId() {
+		return _id;
+	}
+
+	public boolean isLoaded() {
+		return _loaded;
+	}
+
+	// Returns the referenced instance, retrieving it on the first call. Returns null
+	// if the instance no longer exists.
+	public I get() {
+		if(!_loaded) {
+			_target = _entity.find(_id);
+			_loaded = true;
+		}
+		return _target;
+	}
+
+	public boolean equals(Object o) {
+		if(this == o) {
+			return true;
+		}
+		if(!(o instanceof Ref)) {
+			return false;
+		}
+		Ref<?> r = (Ref<?>)o;
+		return _entity == r._entity && _id != null && _id.equals(r._id);
+	}
+
+	public int hashCode() {
+		return _id == null ? 0 : _id.hashCode();
+	}
+
+	public String toString() {
+		return _entity.getInstanceName() + '#' + _id;
+	}
+}
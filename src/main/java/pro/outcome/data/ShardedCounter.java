@@ -0,0 +1,209 @@
+// All the information contained in this source code file is a property of Outcome Professional Services Limited,
+// a company registered in the United Kingdom. Use and distribution of any part of the information 
+// contained in this source code file without our prior consent is forbidden. If you have an interest 
+// in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
+package pro.outcome.data;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import pro.outcome.util.Checker;
+import static pro.outcome.util.Shortcuts.*;
+
+
+// Counter for values that are incremented too often to be kept in a single row, which the
+// datastore can only update about once per second. Increments go to one of several shard rows
+// chosen at random, and the count is the sum of all shards, read with a single batch get and
+// cached in memcache for a few seconds. When increments fail due to contention, the number of
+// shards is doubled, up to MAX_SHARDS. Shards are never removed, so counts stay correct.
+public class ShardedCounter {
+
+	// TYPE:
+	static final String SHARD_KIND = "_CounterShard";
+	static final String CONFIG_KIND = "_Counter";
+	public static final int DEFAULT_SHARDS = 5;
+	public static final int MAX_SHARDS = 500;
+	public static final int DEFAULT_CACHE_SECONDS = 5;
+	private static final String _NAMESPACE = "counters";
+	private static final String _COUNT = "count";
+	private static final String _SHARDS = "shards";
+	private static final Random _random = new Random();
+	private static final Logger _logger = Logger.getLogger(ShardedCounter.class.getName());
+
+	// INSTANCE:
+	private final String _name;
+	private final int _initialShards;
+	private final Expiration _expiration;
+	private final DatastoreService _ds;
+	private final MemcacheService _mc;
+
+	public ShardedCounter(String name, int initialShards, int cacheSeconds) {
+		Checker.checkEmpty(name);
+		Checker.checkMinValue(initialShards, 1);
+		Checker.checkMaxValue(initialShards, MAX_SHARDS);
+		Checker.checkMinValue(cacheSeconds, 1);
+		_name = name;
+		_initialShards = initialShards;
+		_expiration = Expiration.byDeltaSeconds(cacheSeconds);
+		_ds = DatastoreServiceFactory.getDatastoreService();
+		_mc = MemcacheServiceFactory.getMemcacheService(_NAMESPACE);
+	}
+
+	public ShardedCounter(String name) {
+		this(name, DEFAULT_SHARDS, DEFAULT_CACHE_SECONDS);
+	}
+
+	public String getName() {
+		return _name;
+	}
+
+	public void increment() {
+		increment(1);
+	}
+
+	public void increment(final long delta) {
+		final int[] shards = { getShardCount() };
+		Entity.retry(new Callable<Void>() {
+			public Void call() {
+				// A different shard is picked on every attempt:
+				Key key = _getShardKey(_random.nextInt(shards[0]));
+				// Counters run in their own transaction, so they can be incremented inside others:
+				Transaction txn = _ds.beginTransaction(TransactionOptions.Builder.withXG(false));
+				try {
+					com.google.appengine.api.datastore.Entity shard;
+					try {
+						shard = _ds.get(txn, key);
+					}
+					catch(EntityNotFoundException enfe) {
+						shard = new com.google.appengine.api.datastore.Entity(key);
+						shard.setUnindexedProperty(_COUNT, 0L);
+					}
+					shard.setUnindexedProperty(_COUNT, (Long)shard.getProperty(_COUNT)+delta);
+					_ds.put(txn, shard);
+					txn.commit();
+					return null;
+				}
+				catch(ConcurrentModificationException cme) {
+					_logger.log(info("contention on counter {} with {} shard(s)", _name, shards[0]));
+					shards[0] = _grow(shards[0]);
+					throw cme;
+				}
+				finally {
+					if(txn.isActive()) {
+						txn.rollback();
+					}
+				}
+			}
+		});
+		// Only update the cached count if there is one, so that it still expires:
+		_mc.increment(_getCacheKey(_COUNT), delta);
+	}
+
+	// Returns the count, which can be up to the cache expiration out of date:
+	public long getCount() {
+		Object cached = _mc.get(_getCacheKey(_COUNT));
+		if(cached != null) {
+			return ((Number)cached).longValue();
+		}
+		int shards = getShardCount();
+		List<Key> keys = new ArrayList<>(shards);
+		for(int j=0; j<shards; j++) {
+			keys.add(_getShardKey(j));
+		}
+		long count = 0;
+		for(int from=0; from<keys.size(); from+=Entity.MAX_BATCH_GET) {
+			Map<Key,com.google.appengine.api.datastore.Entity> found = _ds.get(null, keys.subList(from, Math.min(from+Entity.MAX_BATCH_GET, keys.size())));
+			for(com.google.appengine.api.datastore.Entity shard : found.values()) {
+				count += (Long)shard.getProperty(_COUNT);
+			}
+		}
+		_mc.put(_getCacheKey(_COUNT), count, _expiration);
+		return count;
+	}
+
+	public int getShardCount() {
+		Object cached = _mc.get(_getCacheKey(_SHARDS));
+		if(cached != null) {
+			return ((Number)cached).intValue();
+		}
+		int shards = _initialShards;
+		try {
+			shards = ((Number)_ds.get(null, _getConfigKey()).getProperty(_SHARDS)).intValue();
+		}
+		catch(EntityNotFoundException enfe) {
+			// Counter has not grown yet.
+		}
+		// Shard counts never decrease, so they can be cached without expiration. Counts cached
+		// in the meantime are at least as recent as this one:
+		_mc.put(_getCacheKey(_SHARDS), shards, null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+		return shards;
+	}
+
+	// Doubles the number of shards, unless someone else has already done so. Returns the new count.
+	private int _grow(int shards) {
+		if(shards >= MAX_SHARDS) {
+			return shards;
+		}
+		Transaction txn = _ds.beginTransaction(TransactionOptions.Builder.withXG(false));
+		try {
+			com.google.appengine.api.datastore.Entity config;
+			int current = _initialShards;
+			try {
+				config = _ds.get(txn, _getConfigKey());
+				current = ((Number)config.getProperty(_SHARDS)).intValue();
+			}
+			catch(EntityNotFoundException enfe) {
+				config = new com.google.appengine.api.datastore.Entity(_getConfigKey());
+			}
+			if(current > shards) {
+				shards = current;
+			}
+			else {
+				int grown = Math.min(shards*2, MAX_SHARDS);
+				config.setUnindexedProperty(_SHARDS, grown);
+				_ds.put(txn, config);
+				txn.commit();
+				shards = grown;
+				_logger.log(info("counter {} grew to {} shard(s)", _name, shards));
+			}
+		}
+		catch(ConcurrentModificationException cme) {
+			// Someone else is growing the counter, pick up their count next time:
+			_mc.delete(_getCacheKey(_SHARDS));
+			return shards;
+		}
+		finally {
+			if(txn.isActive()) {
+				txn.rollback();
+			}
+		}
+		_mc.put(_getCacheKey(_SHARDS), shards);
+		return shards;
+	}
+
+	private Key _getShardKey(int index) {
+		return KeyFactory.createKey(SHARD_KIND, _name + "#" + index);
+	}
+
+	private Key _getConfigKey() {
+		return KeyFactory.createKey(CONFIG_KIND, _name);
+	}
+
+	private String _getCacheKey(String type) {
+		return type + "|" + _name;
+	}
+}
@@ -0,0 +1,22 @@
+// All the information contained in this source code file is a property of Outcome Professional Services Limited,
+// a company registered in the United Kingdom. Use and distribution of any part of the information 
+// contained in this source code file without our prior consent is forbidden. If you have an interest 
+// in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
+package pro.outcome.data;
+import java.util.ConcurrentModificationException;
+
+
+// Thrown when an instance is updated in a transaction after someone else updated it. This is a
+// ConcurrentModificationException, so that Entity.transact runs the work again.
+public class StaleInstanceException extends ConcurrentModificationException {
+
+	StaleInstanceException(String message) {
+		super(message);
+	}
+
+	StaleInstanceException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+	private static final long serialVersionUID = 1L;
+}
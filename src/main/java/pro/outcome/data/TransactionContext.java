@@ -0,0 +1,79 @@
+// All the information contained in this source code file is a property of Outcome Professional Services Limited,
+// a company registered in the United Kingdom. Use and distribution of any part of the information 
+// contained in this source code file without our prior consent is forbidden. If you have an interest 
+// in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
+package pro.outcome.data;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import pro.outcome.util.IllegalUsageException;
+
+
+// Tracks the transaction started on the current thread by Entity.transact or UnitOfWork, and
+// the keys written in it. Caches are not refreshed with uncommitted writes: written keys are
+// evicted straight away, and again once the transaction ends, so that rows cached by other
+// requests in the meantime are discarded.
+class TransactionContext {
+
+	// TYPE:
+	private static final ThreadLocal<TransactionContext> _current = new ThreadLocal<>();
+
+	public static TransactionContext begin() {
+		if(_current.get() != null) {
+			throw new IllegalUsageException("a transaction is already active");
+		}
+		Transaction txn = DatastoreServiceFactory.getDatastoreService().beginTransaction(TransactionOptions.Builder.withXG(true));
+		TransactionContext ctx = new TransactionContext(txn);
+		_current.set(ctx);
+		return ctx;
+	}
+
+	public static TransactionContext getCurrent() {
+		return _current.get();
+	}
+
+	// INSTANCE:
+	private final Transaction _txn;
+	private final Map<Entity<?>,Set<Key>> _written;
+
+	private TransactionContext(Transaction txn) {
+		_txn = txn;
+		_written = new LinkedHashMap<>();
+	}
+
+	public Transaction getTransaction() {
+		return _txn;
+	}
+
+	public void written(Entity<?> entity, Collection<Key> keys) {
+		Set<Key> set = _written.get(entity);
+		if(set == null) {
+			set = new LinkedHashSet<>();
+			_written.put(entity, set);
+		}
+		set.addAll(keys);
+	}
+
+	public void commit() {
+		_txn.commit();
+	}
+
+	// Rolls back the transaction if it did not commit, and clears the current context:
+	public void end() {
+		_current.remove();
+		boolean rolledBack = false;
+		if(_txn.isActive()) {
+			_txn.rollback();
+			rolledBack = true;
+		}
+		for(Map.Entry<Entity<?>,Set<Key>> entry : _written.entrySet()) {
+			entry.getKey().evict(entry.getValue(), rolledBack);
+		}
+	}
+}
@@ -0,0 +1,489 @@
+// All the information contained in this source code file is a property of Outcome Professional Services Limited,
+// a company registered in the United Kingdom. Use and distribution of any part of the information 
+// contained in this source code file without our prior consent is forbidden. If you have an interest 
+// in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
+package pro.outcome.data;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import pro.outcome.util.Strings;
+import static pro.outcome.util.Shortcuts.*;
+
+
+// Enforces unique properties and unique constraints by reserving a sentinel entity for every
+// unique value, keyed by a hash of the entity name, the constraint's properties and their values.
+// Checking uniqueness is then a batch get by key instead of one query per constraint. Writes that
+// touch up to MAX_GROUPS entity groups run in a cross-group transaction, which makes them safe
+// under concurrency. Larger batches are split into several such transactions.
+// Sentinels point to the instance that owns them. Sentinels whose owner has been deleted or no
+// longer holds the value (e.g. after deleteWhere, which never loads rows) are reclaimed lazily.
+// Rows persisted before the index existed have no sentinels. Until rebuild has run over all of
+// them (see Entity.rebuildUniqueIndex), values without a sentinel are also checked with a query.
+class UniqueIndex<I extends Instance<?>> {
+
+	// TYPE:
+	static final String KIND = "_Unique";
+	// Records the entities whose index has been rebuilt:
+	static final String REBUILT_KIND = "_UniqueRebuilt";
+	// Maximum number of entity groups in a cross-group transaction:
+	static final int MAX_GROUPS = 25;
+	private static final String _OWNER = "owner";
+	private static final Logger _logger = Logger.getLogger(UniqueIndex.class.getName());
+
+	// INSTANCE:
+	private final Entity<I> _entity;
+	private final List<UniqueConstraint> _constraints;
+	// Becomes true once the index is known to hold sentinels for all rows:
+	private volatile boolean _rebuilt;
+
+	public UniqueIndex(Entity<I> entity, List<UniqueConstraint> constraints) {
+		_entity = entity;
+		_constraints = constraints;
+		_rebuilt = false;
+	}
+
+	public boolean isEmpty() {
+		return _constraints.isEmpty();
+	}
+
+	public int size() {
+		return _constraints.size();
+	}
+
+	// Returns the sentinel keys for the values of a row, mapped to their constraint:
+	public Map<Key,UniqueConstraint> getKeys(com.google.appengine.api.datastore.Entity e) {
+		Map<Key,UniqueConstraint> keys = new LinkedHashMap<>();
+		for(UniqueConstraint uc : _constraints) {
+			Property<?>[] props = uc.getProperties();
+			StringBuilder name = new StringBuilder(_entity.getName()).append('|');
+			Object[] values = new Object[props.length];
+			boolean skip = false;
+			for(int j=0; j<props.length; j++) {
+				values[j] = e.getProperty(props[j].getName());
+				// Null values on unique properties are not reserved:
+				if(values[j] == null && props.length == 1) {
+					skip = true;
+				}
+				name.append(j == 0 ? "" : ",").append(props[j].getName());
+			}
+			if(!skip) {
+				keys.put(KeyFactory.createKey(KIND, Strings.toSha1(encode(name.toString(), values))), uc);
+			}
+		}
+		return keys;
+	}
+
+	// Persists a batch of flushed instances, reserving the sentinels of their values. For updates,
+	// "previous" holds the sentinel keys of each instance before its updates were flushed, or null
+	// for instances whose unique values were not updated.
+	public void write(List<I> batch, List<Set<Key>> previous) {
+		boolean insert = previous == null;
+		// Collect sentinels, checking for duplicates within the batch:
+		Map<Key,I> owners = new HashMap<>();
+		Map<Key,UniqueConstraint> reserved = new LinkedHashMap<>();
+		Set<Key> released = new LinkedHashSet<>();
+		// Sentinels reserved and released by each instance:
+		List<Map<Key,UniqueConstraint>> reservedBy = new ArrayList<>(batch.size());
+		List<Set<Key>> releasedBy = new ArrayList<>(batch.size());
+		for(int j=0; j<batch.size(); j++) {
+			I i = batch.get(j);
+			Map<Key,UniqueConstraint> iReserved = new LinkedHashMap<>();
+			Set<Key> iReleased = new LinkedHashSet<>();
+			// Sentinels of unchanged values stay as they are:
+			if(!insert && previous.get(j) == null) {
+				reservedBy.add(iReserved);
+				releasedBy.add(iReleased);
+				continue;
+			}
+			Map<Key,UniqueConstraint> keys = getKeys(i.getGoogleEntity());
+			for(Map.Entry<Key,UniqueConstraint> entry : keys.entrySet()) {
+				if(owners.put(entry.getKey(), i) != null) {
+					throw _newException(entry.getValue(), i);
+				}
+				if(insert || !previous.get(j).contains(entry.getKey())) {
+					iReserved.put(entry.getKey(), entry.getValue());
+				}
+			}
+			if(!insert) {
+				for(Key key : previous.get(j)) {
+					if(!keys.containsKey(key)) {
+						iReleased.add(key);
+					}
+				}
+			}
+			reserved.putAll(iReserved);
+			released.addAll(iReleased);
+			reservedBy.add(iReserved);
+			releasedBy.add(iReleased);
+		}
+		// Don't release sentinels that another instance in the batch is taking over:
+		released.removeAll(owners.keySet());
+		for(Set<Key> iReleased : releasedBy) {
+			iReleased.removeAll(owners.keySet());
+		}
+		// Keys need to be complete so that sentinels can point to their owner:
+		List<com.google.appengine.api.datastore.Entity> originals = null;
+		if(insert) {
+			// Keys can already be complete, e.g. when they are derived from the natural key:
+			int incomplete = 0;
+			for(I i : batch) {
+				if(!i.getGoogleEntity().getKey().isComplete()) {
+					incomplete++;
+				}
+			}
+			originals = new ArrayList<>(batch.size());
+			Iterator<Key> it = _entity.allocateKeys(incomplete).iterator();
+			for(I i : batch) {
+				com.google.appengine.api.datastore.Entity original = i.getGoogleEntity();
+				originals.add(original);
+				if(!original.getKey().isComplete()) {
+					com.google.appengine.api.datastore.Entity e = new com.google.appengine.api.datastore.Entity(it.next());
+					e.setPropertiesFrom(original);
+					i.setGoogleEntity(e);
+				}
+			}
+		}
+		// Writes join the current transaction, if any, and are not retried on their own:
+		Transaction current = _entity.getDatastoreService().getCurrentTransaction(null);
+		if(current != null) {
+			try {
+				_write(current, batch, owners, reserved, released);
+			}
+			catch(RuntimeException e) {
+				_restore(batch, originals, 0);
+				throw e;
+			}
+			return;
+		}
+		// Otherwise, the batch is split into transactions of up to MAX_GROUPS entity groups, i.e.
+		// instances along with the sentinels they reserve and release:
+		int from = 0;
+		try {
+			while(from < batch.size()) {
+				List<I> chunk = new ArrayList<>();
+				Map<Key,UniqueConstraint> chunkReserved = new LinkedHashMap<>();
+				Set<Key> chunkReleased = new LinkedHashSet<>();
+				int groups = 0;
+				for(int j=from; j<batch.size(); j++) {
+					Map<Key,UniqueConstraint> iReserved = reservedBy.get(j);
+					Set<Key> iReleased = releasedBy.get(j);
+					int iGroups = 1 + iReserved.size() + iReleased.size();
+					if(iGroups > MAX_GROUPS) {
+						throw new IllegalStateException(x("{} instance touches {} entity groups, more than can be written in a transaction", _entity.getInstanceName(), iGroups));
+					}
+					if(groups + iGroups > MAX_GROUPS) {
+						break;
+					}
+					groups += iGroups;
+					chunk.add(batch.get(j));
+					chunkReserved.putAll(iReserved);
+					chunkReleased.addAll(iReleased);
+				}
+				_writeInTransaction(chunk, owners, chunkReserved, chunkReleased);
+				from += chunk.size();
+			}
+		}
+		catch(RuntimeException e) {
+			// Earlier transactions have been committed, so their instances are persisted:
+			if(from > 0) {
+				_entity.afterPut(batch.subList(0, from));
+			}
+			_restore(batch, originals, from);
+			throw e;
+		}
+	}
+
+	// Restores incomplete keys of inserted instances, from the first one that was not persisted:
+	private void _restore(List<I> batch, List<com.google.appengine.api.datastore.Entity> originals, int from) {
+		if(originals != null) {
+			for(int j=from; j<batch.size(); j++) {
+				batch.get(j).setGoogleEntity(originals.get(j));
+			}
+		}
+	}
+
+	// Frees the sentinels held by rows that have been deleted. Once a row is deleted, a concurrent
+	// insert can reclaim its sentinels, so they are only deleted if they still point to the row,
+	// which is checked in the same transaction as the delete.
+	public void release(List<com.google.appengine.api.datastore.Entity> entities) {
+		Map<Key,Key> owners = new LinkedHashMap<>();
+		for(com.google.appengine.api.datastore.Entity e : entities) {
+			for(Key key : getKeys(e).keySet()) {
+				owners.put(key, e.getKey());
+			}
+		}
+		final DatastoreService ds = _entity.getDatastoreService();
+		Transaction current = ds.getCurrentTransaction(null);
+		if(current != null) {
+			_release(current, owners);
+			return;
+		}
+		// Every sentinel is an entity group of its own:
+		List<Key> keys = new ArrayList<>(owners.keySet());
+		for(int from=0; from<keys.size(); from+=MAX_GROUPS) {
+			final Map<Key,Key> chunk = new HashMap<>();
+			for(Key key : keys.subList(from, Math.min(from+MAX_GROUPS, keys.size()))) {
+				chunk.put(key, owners.get(key));
+			}
+			Entity.retry(new Callable<Void>() {
+				public Void call() {
+					Transaction txn = ds.beginTransaction(TransactionOptions.Builder.withXG(true));
+					try {
+						_release(txn, chunk);
+						txn.commit();
+						return null;
+					}
+					finally {
+						if(txn.isActive()) {
+							txn.rollback();
+						}
+					}
+				}
+			});
+		}
+	}
+
+	// Deletes the sentinels that still point to the given owners:
+	private void _release(Transaction txn, Map<Key,Key> owners) {
+		List<Key> keys = new ArrayList<>(owners.keySet());
+		List<Key> released = new ArrayList<>();
+		for(int from=0; from<keys.size(); from+=Entity.MAX_BATCH_GET) {
+			for(com.google.appengine.api.datastore.Entity sentinel : _entity.getDatastoreService().get(txn, keys.subList(from, Math.min(from+Entity.MAX_BATCH_GET, keys.size()))).values()) {
+				if(owners.get(sentinel.getKey()).equals(sentinel.getProperty(_OWNER))) {
+					released.add(sentinel.getKey());
+				}
+			}
+		}
+		_delete(txn, released);
+	}
+
+	// Writes sentinels for rows that were persisted before they were enforced. Returns the number
+	// of values that are already held by a different row, i.e. existing violations. Sentinels held
+	// by other rows are kept, unless those rows no longer hold the value.
+	public int rebuild(List<com.google.appengine.api.datastore.Entity> entities) {
+		Map<Key,com.google.appengine.api.datastore.Entity> sentinels = new LinkedHashMap<>();
+		int conflicts = 0;
+		for(com.google.appengine.api.datastore.Entity e : entities) {
+			for(Key key : getKeys(e).keySet()) {
+				if(sentinels.containsKey(key)) {
+					conflicts++;
+				}
+				else {
+					sentinels.put(key, _newSentinel(key, e.getKey()));
+				}
+			}
+		}
+		// Check sentinels written before, e.g. by previous chunks or by rows persisted since:
+		DatastoreService ds = _entity.getDatastoreService();
+		List<Key> keys = new ArrayList<>(sentinels.keySet());
+		Map<Key,Key> taken = new HashMap<>();
+		for(int from=0; from<keys.size(); from+=Entity.MAX_BATCH_GET) {
+			for(com.google.appengine.api.datastore.Entity sentinel : ds.get(null, keys.subList(from, Math.min(from+Entity.MAX_BATCH_GET, keys.size()))).values()) {
+				Key owner = (Key)sentinel.getProperty(_OWNER);
+				if(!owner.equals(sentinels.get(sentinel.getKey()).getProperty(_OWNER))) {
+					taken.put(sentinel.getKey(), owner);
+				}
+			}
+		}
+		if(!taken.isEmpty()) {
+			List<Key> ownerKeys = new ArrayList<>(new HashSet<>(taken.values()));
+			Map<Key,com.google.appengine.api.datastore.Entity> owners = new HashMap<>();
+			for(int from=0; from<ownerKeys.size(); from+=Entity.MAX_BATCH_GET) {
+				owners.putAll(ds.get(null, ownerKeys.subList(from, Math.min(from+Entity.MAX_BATCH_GET, ownerKeys.size()))));
+			}
+			for(Map.Entry<Key,Key> entry : taken.entrySet()) {
+				com.google.appengine.api.datastore.Entity owner = owners.get(entry.getValue());
+				if(owner != null && getKeys(owner).containsKey(entry.getKey())) {
+					conflicts++;
+					sentinels.remove(entry.getKey());
+				}
+			}
+		}
+		_put(null, new ArrayList<>(sentinels.values()));
+		return conflicts;
+	}
+
+	// If another request touched the same sentinels, the write runs again to find out who won:
+	// For Entity:
+	// Records that all rows have sentinels, so that values without one no longer need a query:
+	void markRebuilt() {
+		_entity.getDatastoreService().put(null, new com.google.appengine.api.datastore.Entity(_getRebuiltKey()));
+		_rebuilt = true;
+	}
+
+	private boolean _isRebuilt() {
+		if(!_rebuilt) {
+			try {
+				_entity.getDatastoreService().get(null, _getRebuiltKey());
+				_rebuilt = true;
+			}
+			catch(EntityNotFoundException enfe) {
+				// Rows may still be missing their sentinels.
+			}
+		}
+		return _rebuilt;
+	}
+
+	private Key _getRebuiltKey() {
+		return KeyFactory.createKey(REBUILT_KIND, _entity.getName());
+	}
+
+	// Returns true if a row other than the owner holds the constraint's values. Queries run outside
+	// of transactions and are eventually consistent, like the checks made before the index existed.
+	private boolean _isHeldByQuery(UniqueConstraint uc, I owner) {
+		Key key = owner.getGoogleEntity().getKey();
+		for(com.google.appengine.api.datastore.Entity e : new Query<I>(_entity).addWhere(uc.toArgs(owner)).prepareKeysOnly().asList(FetchOptions.Builder.withLimit(2))) {
+			if(!e.getKey().equals(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void _writeInTransaction(final List<I> batch, final Map<Key,I> owners, final Map<Key,UniqueConstraint> reserved, final Set<Key> released) {
+		final DatastoreService ds = _entity.getDatastoreService();
+		Entity.retry(new Callable<Void>() {
+			public Void call() {
+				Transaction txn = ds.beginTransaction(TransactionOptions.Builder.withXG(true));
+				try {
+					_write(txn, batch, owners, reserved, released);
+					txn.commit();
+					return null;
+				}
+				finally {
+					if(txn.isActive()) {
+						txn.rollback();
+					}
+				}
+			}
+		});
+	}
+
+	private void _write(Transaction txn, List<I> batch, Map<Key,I> owners, Map<Key,UniqueConstraint> reserved, Set<Key> released) {
+		DatastoreService ds = _entity.getDatastoreService();
+		// Check sentinels that are already taken:
+		List<Key> keys = new ArrayList<>(reserved.keySet());
+		Map<Key,Key> taken = new HashMap<>();
+		Set<Key> free = new LinkedHashSet<>(keys);
+		for(int from=0; from<keys.size(); from+=Entity.MAX_BATCH_GET) {
+			Map<Key,com.google.appengine.api.datastore.Entity> existing = ds.get(txn, keys.subList(from, Math.min(from+Entity.MAX_BATCH_GET, keys.size())));
+			free.removeAll(existing.keySet());
+			for(com.google.appengine.api.datastore.Entity sentinel : existing.values()) {
+				Key owner = (Key)sentinel.getProperty(_OWNER);
+				if(!owner.equals(owners.get(sentinel.getKey()).getGoogleEntity().getKey())) {
+					taken.put(sentinel.getKey(), owner);
+				}
+			}
+		}
+		// Values without a sentinel may still be held by rows persisted before the index existed:
+		if(!free.isEmpty() && !_isRebuilt()) {
+			for(Key key : free) {
+				if(_isHeldByQuery(reserved.get(key), owners.get(key))) {
+					throw _newException(reserved.get(key), owners.get(key));
+				}
+			}
+		}
+		if(!taken.isEmpty()) {
+			// Owners are read outside the transaction to keep it within its entity group limit:
+			Map<Key,com.google.appengine.api.datastore.Entity> current = ds.get(null, new HashSet<>(taken.values()));
+			for(Map.Entry<Key,Key> entry : taken.entrySet()) {
+				com.google.appengine.api.datastore.Entity owner = current.get(entry.getValue());
+				if(owner != null && getKeys(owner).containsKey(entry.getKey())) {
+					throw _newException(reserved.get(entry.getKey()), owners.get(entry.getKey()));
+				}
+				_logger.log(info("reclaiming stale unique index entry of {}", entry.getValue()));
+			}
+		}
+		// Persist:
+		List<com.google.appengine.api.datastore.Entity> entities = new ArrayList<>(batch.size() + reserved.size());
+		for(Key key : reserved.keySet()) {
+			entities.add(_newSentinel(key, owners.get(key).getGoogleEntity().getKey()));
+		}
+		for(I i : batch) {
+			entities.add(i.getGoogleEntity());
+		}
+		_put(txn, entities);
+		_delete(txn, new ArrayList<>(released));
+	}
+
+	private void _put(Transaction txn, List<com.google.appengine.api.datastore.Entity> entities) {
+		for(int from=0; from<entities.size(); from+=Entity.MAX_BATCH_PUT) {
+			_entity.getDatastoreService().put(txn, entities.subList(from, Math.min(from+Entity.MAX_BATCH_PUT, entities.size())));
+		}
+	}
+
+	private void _delete(Transaction txn, List<Key> keys) {
+		for(int from=0; from<keys.size(); from+=Entity.MAX_BATCH_DELETE) {
+			_entity.getDatastoreService().delete(txn, keys.subList(from, Math.min(from+Entity.MAX_BATCH_DELETE, keys.size())));
+		}
+	}
+
+	private com.google.appengine.api.datastore.Entity _newSentinel(Key key, Key owner) {
+		com.google.appengine.api.datastore.Entity sentinel = new com.google.appengine.api.datastore.Entity(key);
+		sentinel.setUnindexedProperty(_OWNER, owner);
+		return sentinel;
+	}
+
+	private UniqueConstraintException _newException(UniqueConstraint uc, I i) {
+		Property<?>[] props = uc.getProperties();
+		if(props.length == 1) {
+			return new UniqueConstraintException(props[0], i.getValue(props[0]));
+		}
+		return new UniqueConstraintException(uc);
+	}
+
+	// For Self and Entity:
+	// Encodes a tuple of values under a name, such that different tuples always produce
+	// different strings (values are self-delimiting, see below):
+	static String encode(String name, Object ... values) {
+		StringBuilder sb = new StringBuilder(name);
+		for(Object value : values) {
+			sb.append('|').append(encode(value));
+		}
+		return sb.toString();
+	}
+
+	// For Self, Entity and CachedQuery:
+	// Encodes a datastore value so that equal values always produce the same string, and different
+	// values (including values of different types) never do. Values that can contain arbitrary
+	// characters are prefixed with their length, so that they can be concatenated unambiguously.
+	static String encode(Object value) {
+		if(value == null) {
+			return "N";
+		}
+		// The datastore returns all integers as Long and all decimals as Double:
+		if(value instanceof Integer || value instanceof Short || value instanceof Byte || value instanceof Long) {
+			return "L" + ((Number)value).longValue();
+		}
+		if(value instanceof Float || value instanceof Double) {
+			return "D" + ((Number)value).doubleValue();
+		}
+		if(value instanceof Date) {
+			return "T" + ((Date)value).getTime();
+		}
+		if(value instanceof String) {
+			return "S" + ((String)value).length() + ':' + value;
+		}
+		if(value instanceof Boolean) {
+			return "B" + value;
+		}
+		String s = value.toString();
+		return "O" + value.getClass().getName() + ':' + s.length() + ':' + s;
+	}
+}
@@ -0,0 +1,213 @@
+// All the information contained in this source code file is a property of Outcome Professional Services Limited,
+// a company registered in the United Kingdom. Use and distribution of any part of the information 
+// contained in this source code file without our prior consent is forbidden. If you have an interest 
+// in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
+package pro.outcome.data;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import pro.outcome.util.IllegalUsageException;
+import static pro.outcome.util.Shortcuts.*;
+
+
+// Defers updates and deletes until the end of a request, so that repeated updates of the
+// same instance are coalesced and all writes go to the datastore as batched puts and deletes.
+// Units of work are bound to the current thread and are re-entrant, like IdentityMap.
+// Inserts are not deferred, since callers need the generated ids and uniqueness checks
+// right away, and neither are writes in transactions (see Entity.transact). When transactional,
+// the flush runs in a single cross-group transaction, which is limited by the datastore to 25
+// entity groups.
+public class UnitOfWork {
+
+	// TYPE:
+	private static final ThreadLocal<UnitOfWork> _current = new ThreadLocal<>();
+	private static final Logger _logger = Logger.getLogger(UnitOfWork.class.getName());
+
+	public static void begin(boolean transactional) {
+		UnitOfWork uow = _current.get();
+		if(uow == null) {
+			uow = new UnitOfWork(transactional);
+			_current.set(uow);
+		}
+		uow._depth++;
+	}
+
+	// Flushes all pending writes when called by the outermost caller:
+	public static void commit() {
+		UnitOfWork uow = _getActive();
+		uow._depth--;
+		if(uow._depth == 0) {
+			// Writes issued while flushing must not be deferred again:
+			_current.remove();
+			uow._flush();
+		}
+	}
+
+	// Drops all pending writes. Instances keep their pending updates.
+	public static void discard() {
+		UnitOfWork uow = _getActive();
+		_current.remove();
+		// Instances that were going to be deleted can be found again:
+		IdentityMap map = IdentityMap.getCurrent();
+		if(map != null) {
+			for(Set<Instance<?>> set : uow._deletes.values()) {
+				for(Instance<?> i : set) {
+					map.put(i.getGoogleEntity().getKey(), i);
+				}
+			}
+		}
+		uow._updates.clear();
+		uow._deletes.clear();
+	}
+
+	public static boolean isActive() {
+		return _current.get() != null;
+	}
+
+	// For Entity:
+	static UnitOfWork getCurrent() {
+		return _current.get();
+	}
+
+	private static UnitOfWork _getActive() {
+		UnitOfWork uow = _current.get();
+		if(uow == null) {
+			throw new IllegalUsageException("unit of work has not been started");
+		}
+		return uow;
+	}
+
+	// INSTANCE:
+	private final boolean _transactional;
+	// Instances are tracked by identity, since their updates are held in the instance itself:
+	private final Map<Entity<?>,Set<Instance<?>>> _updates;
+	private final Map<Entity<?>,Set<Instance<?>>> _deletes;
+	private int _depth;
+
+	private UnitOfWork(boolean transactional) {
+		_transactional = transactional;
+		_updates = new LinkedHashMap<>();
+		_deletes = new LinkedHashMap<>();
+		_depth = 0;
+	}
+
+	// For Entity:
+	void update(Entity<?> entity, Instance<?> i) {
+		_register(_updates, entity, i);
+	}
+
+	// For Entity:
+	// Instances are removed from the identity map right away, so that they are no longer found
+	// by id for the rest of the request (queries that bypass the query cache still return them).
+	void delete(Entity<?> entity, Instance<?> i) {
+		_register(_deletes, entity, i);
+		IdentityMap map = IdentityMap.getCurrent();
+		if(map != null) {
+			map.put(i.getGoogleEntity().getKey(), null);
+		}
+	}
+
+	// For Entity:
+	// Runs the pending deletes of the entity right away, since inserts are not deferred and can
+	// reuse unique values of rows that are pending deletion. In a transactional unit of work, the
+	// deletes run in their own transaction and can no longer be discarded.
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	void flushDeletes(Entity<?> entity) {
+		Set<Instance<?>> deletes = _deletes.remove(entity);
+		if(deletes == null) {
+			return;
+		}
+		// Deleted instances must not be written back by their pending updates:
+		Set<Instance<?>> updates = _updates.get(entity);
+		if(updates != null) {
+			updates.removeAll(deletes);
+		}
+		_logger.log(info("flushing {} delete(s) of {} ahead of an insert", deletes.size(), entity.getName()));
+		List<Instance<?>> batch = new ArrayList<>(deletes);
+		CascadePlan plan = ((Entity)entity).planDelete(batch);
+		TransactionContext ctx = null;
+		if(_transactional && TransactionContext.getCurrent() == null) {
+			ctx = TransactionContext.begin();
+		}
+		try {
+			((Entity)entity).executeDelete(plan, batch);
+			if(ctx != null) {
+				ctx.commit();
+			}
+		}
+		finally {
+			if(ctx != null) {
+				ctx.end();
+			}
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private void _flush() {
+		if(_updates.isEmpty() && _deletes.isEmpty()) {
+			return;
+		}
+		_logger.log(info("flushing {} update(s) and {} delete(s)", _count(_updates), _count(_deletes)));
+		// Cascades are planned with queries, which cannot run inside the transaction:
+		Map<Entity<?>,CascadePlan> plans = new LinkedHashMap<>();
+		for(Map.Entry<Entity<?>,Set<Instance<?>>> entry : _deletes.entrySet()) {
+			Entity entity = entry.getKey();
+			plans.put(entity, entity.planDelete(new ArrayList<>(entry.getValue())));
+		}
+		// Writes join the current transaction, if any:
+		TransactionContext ctx = null;
+		if(_transactional && TransactionContext.getCurrent() == null) {
+			ctx = TransactionContext.begin();
+		}
+		try {
+			for(Map.Entry<Entity<?>,Set<Instance<?>>> entry : _updates.entrySet()) {
+				// Instances that are deleted in the same unit of work are not updated:
+				Set<Instance<?>> deleted = _deletes.get(entry.getKey());
+				List<Instance<?>> batch = new ArrayList<>(entry.getValue().size());
+				for(Instance<?> i : entry.getValue()) {
+					if(deleted == null || !deleted.contains(i)) {
+						batch.add(i);
+					}
+				}
+				Entity entity = entry.getKey();
+				entity.updateAll(batch);
+			}
+			for(Map.Entry<Entity<?>,CascadePlan> entry : plans.entrySet()) {
+				Entity entity = entry.getKey();
+				entity.executeDelete(entry.getValue(), new ArrayList<>(_deletes.get(entity)));
+			}
+			if(ctx != null) {
+				ctx.commit();
+			}
+		}
+		finally {
+			if(ctx != null) {
+				ctx.end();
+			}
+			_updates.clear();
+			_deletes.clear();
+		}
+	}
+
+	private static void _register(Map<Entity<?>,Set<Instance<?>>> map, Entity<?> entity, Instance<?> i) {
+		Set<Instance<?>> set = map.get(entity);
+		if(set == null) {
+			set = Collections.newSetFromMap(new IdentityHashMap<Instance<?>,Boolean>());
+			map.put(entity, set);
+		}
+		set.add(i);
+	}
+
+	private static int _count(Map<Entity<?>,Set<Instance<?>>> map) {
+		int count = 0;
+		for(Set<Instance<?>> set : map.values()) {
+			count += set.size();
+		}
+		return count;
+	}
+}
@@ -4,6 +4,7 @@
 // in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
 package pro.outcome.rest;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.io.IOException;
 import java.util.Set;
 import java.util.Calendar;
@@ -24,12 +25,15 @@ public class ResponseImpl extends HttpServletResponseWrapper implements Response
 	private boolean _lenient;
 	private boolean _committed;
 	private boolean _contentTypeSet;
+	// Holds the body until the request has been processed, or null if it is written straight away:
+	private StringWriter _buffer;
 	
 	public ResponseImpl(HttpServletResponse response, String contentType) {
 		super(response);
 		_cookieNames = new HashSet<String>();
 		_contentType = contentType;
 		_lenient = _committed = _contentTypeSet = false;
+		_buffer = null;
 	}
 
 	public boolean hasCookie(String name, String path) {
@@ -173,6 +177,36 @@ public class ResponseImpl extends HttpServletResponseWrapper implements Response
 		_lenient = lenient;
 	}
 
+	// For Servlet:
+	// Keeps the body written through getWriter in memory, so that it can still be replaced by
+	// an error response. Nothing is sent to the client until writeBuffer is called.
+	void startBuffer() {
+		_buffer = new StringWriter();
+	}
+
+	// For Servlet:
+	// Drops the body written so far, so that a different response can be sent:
+	void discardBuffer() {
+		if(_buffer != null) {
+			_buffer = new StringWriter();
+			_committed = false;
+		}
+	}
+
+	// For Servlet:
+	void writeBuffer() throws IOException {
+		if(_buffer == null) {
+			return;
+		}
+		String body = _buffer.toString();
+		_buffer = null;
+		if(_committed) {
+			PrintWriter out = super.getWriter();
+			out.write(body);
+			out.flush();
+		}
+	}
+
 	private void _checkCommitted() {
 		if(!_lenient) {
 			if(_committed) {
@@ -187,6 +221,9 @@ public class ResponseImpl extends HttpServletResponseWrapper implements Response
 			setContentType(_contentType);
 		}
 		_committed = true;
+		if(_buffer != null) {
+			return new PrintWriter(_buffer);
+		}
 		return super.getWriter();
 	}
 
@@ -17,6 +17,8 @@ import freemarker.template.Template;
 import freemarker.template.TemplateExceptionHandler;
 import pro.outcome.rest.Request.HttpMethod;
 import pro.outcome.data.ConfigWrapper;
+import pro.outcome.data.IdentityMap;
+import pro.outcome.data.UnitOfWork;
 import pro.outcome.util.Checker;
 import pro.outcome.util.IntegrityException;
 import pro.outcome.util.Reflection;
@@ -36,6 +38,8 @@ public abstract class Servlet extends HttpServlet {
 	private final boolean _doGetOverridden;
 	private final boolean _doPostOverridden;
 	private Configuration _cfg;
+	// Null when updates and deletes are written as they happen:
+	private Boolean _unitOfWork;
 	
 	protected Servlet() {
 		super();
@@ -45,6 +49,7 @@ public abstract class Servlet extends HttpServlet {
 		_doGetOverridden = Reflection.getDeclaredMethod(true, getClass(), "doGet", Request.class, Response.class) != null;
 		_doPostOverridden = Reflection.getDeclaredMethod(true, getClass(), "doPost", Request.class, Response.class) != null;
 		_cfg = null;
+		_unitOfWork = null;
 	}
 
 	protected abstract String getExpectedContentType();
@@ -115,6 +120,14 @@ public abstract class Servlet extends HttpServlet {
 		_post.add(post);
 	}
 	
+	// Defers updates and deletes until the request has been processed, and writes them
+	// in batches (see UnitOfWork). Pending writes are discarded if the request fails. The
+	// response body is held back until the writes succeed, so that a failed flush can
+	// still be reported as an error. Bodies written through getOutputStream are not held back.
+	protected void useUnitOfWork(boolean transactional) {
+		_unitOfWork = transactional;
+	}
+
 	protected Template getTemplate(String path) throws IOException {
 		Checker.checkEmpty(path);
 		if(_cfg == null) {
@@ -159,8 +172,14 @@ public abstract class Servlet extends HttpServlet {
 
 	private void _process(HttpMethod method, HttpServletRequest httpReq, HttpServletResponse httpResp) throws IOException {
 		Request req = new RequestImpl(httpReq);
-		Response resp = new ResponseImpl(httpResp, getExpectedContentType());
+		ResponseImpl resp = new ResponseImpl(httpResp, getExpectedContentType());
 		getLogger().info(x("servlet '{}' received a {} request", getClass().getSimpleName(), method));
+		// Instances retrieved by id are shared for the length of the request:
+		IdentityMap.open();
+		if(_unitOfWork != null) {
+			UnitOfWork.begin(_unitOfWork);
+			resp.startBuffer();
+		}
 		try {
 			req.setCharacterEncoding(CHARSET);
 			resp.setCharacterEncoding(CHARSET);
@@ -189,10 +208,26 @@ public abstract class Servlet extends HttpServlet {
 			for(Processor p : _post) {
 				p.process(req, resp);
 			}
+			if(_unitOfWork != null) {
+				UnitOfWork.commit();
+			}
 		}
 		catch(Exception e) {
+			if(UnitOfWork.isActive()) {
+				UnitOfWork.discard();
+			}
+			// Replace the response, which may report writes that were never made:
+			resp.discardBuffer();
 			ErrorHandler.handleException(e, req, resp);
 		}
+		finally {
+			// Errors thrown by the error handler itself:
+			if(UnitOfWork.isActive()) {
+				UnitOfWork.discard();
+			}
+			IdentityMap.close();
+			resp.writeBuffer();
+		}
 		getLogger().info(x("servlet '{}' completed a {} request", getClass().getSimpleName(), method));
 	}
 
@@ -3,6 +3,9 @@
 // contained in this source code file without our prior consent is forbidden. If you have an interest 
 // in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
 package pro.outcome.util;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -372,4 +375,21 @@ public class Strings {
 		}
 		return s;
 	}
+
+	// Returns the SHA-1 digest of the string's UTF-8 bytes, in hexadecimal:
+	public static String toSha1(String s) {
+		Checker.checkNull(s);
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder(digest.length*2);
+			for(byte b : digest) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+				sb.append(Character.forDigit(b & 0xF, 16));
+			}
+			return sb.toString();
+		}
+		catch(NoSuchAlgorithmException nsae) {
+			throw new IntegrityException(nsae);
+		}
+	}
 }
@@ -0,0 +1,75 @@
+// All the information contained in this source code file is a property of Outcome Professional Services Limited,
+// a company registered in the United Kingdom. Use and distribution of any part of the information 
+// contained in this source code file without our prior consent is forbidden. If you have an interest 
+// in using any part of this source code in your software, please contact hiCarlosSilva@gmail.com.
+package pro.outcome.data;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import com.google.appengine.api.datastore.KeyFactory;
+import pro.outcome.test.TestEnvironment;
+import pro.outcome.util.Reflection;
+
+
+// Compares materializing rows through InstanceFactory (Instance.newFrom) against the
+// previous reflective path. Run its main method with the test classpath.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class BenchmarkInstanceFactory {
+
+	// TYPE:
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(BenchmarkInstanceFactory.class.getSimpleName()).build()).run();
+	}
+
+	public static class Sample extends Instance<Samples> {
+		public Sample() {}
+		public String getDescription() { return "sample"; }
+	}
+
+	public static class Samples extends Entity<Sample> {
+		public Property<?>[] getNaturalKeyProperties() { return null; }
+	}
+
+	private static Samples _samples;
+
+	// INSTANCE:
+	private com.google.appengine.api.datastore.Entity _row;
+
+	@Setup
+	public void setUp() {
+		TestEnvironment.install();
+		synchronized(BenchmarkInstanceFactory.class) {
+			if(_samples == null) {
+				_samples = new Samples();
+			}
+		}
+		_row = new com.google.appengine.api.datastore.Entity(KeyFactory.createKey(_samples.getName(), 1L));
+	}
+
+	@Benchmark
+	public Sample reflection() {
+		Sample s = Reflection.createObject(Sample.class);
+		s.setGoogleEntity(_row);
+		return s;
+	}
+
+	@Benchmark
+	public Sample factory() {
+		return Instance.newFrom(Sample.class, _row);
+	}
+}
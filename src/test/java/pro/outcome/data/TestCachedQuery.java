@@ -0,0 +1,106 @@
+package pro.outcome.data;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+import static pro.outcome.util.Shortcuts.*;
+
+
+public class TestCachedQuery {
+
+	public static void main(String[] args) throws Exception {
+		setUpClass();
+		TestCachedQuery test = new TestCachedQuery();
+		test.testFilterOrder();
+		test.testCompositeFilterOrder();
+		test.testValueTypes();
+		test.testDates();
+		test.testSortsLimitAndPosition();
+		println("All done.");
+	}
+
+	public static class Search extends Instance<Searches> {
+		public Search() {}
+		public String getDescription() { return "search"; }
+	}
+
+	public static class Searches extends Entity<Search> {
+		public Property<?>[] getNaturalKeyProperties() { return null; }
+	}
+
+	private static Searches _searches;
+
+	@BeforeClass
+	public static void setUpClass() {
+		if(_searches == null) {
+			_searches = new Searches();
+		}
+	}
+
+	private static final List<SortPredicate> _NO_SORTS = Collections.emptyList();
+
+	private static String _normalize(Filter ... filters) {
+		return CachedQuery.normalize(_searches, Arrays.asList(filters), _NO_SORTS, 10, null);
+	}
+
+	private static Filter _eq(String name, Object value) {
+		return new FilterPredicate(name, FilterOperator.EQUAL, value);
+	}
+
+	// INSTANCE:
+	@Test
+	public void testFilterOrder() {
+		assertEquals(_normalize(_eq("a", 1L), _eq("b", "x")), _normalize(_eq("b", "x"), _eq("a", 1L)));
+		assertFalse(_normalize(_eq("a", 1L)).equals(_normalize(_eq("a", 1L), _eq("b", "x"))));
+		assertFalse(_normalize(_eq("a", 1L)).equals(_normalize(new FilterPredicate("a", FilterOperator.GREATER_THAN, 1L))));
+	}
+
+	@Test
+	public void testCompositeFilterOrder() {
+		Filter or1 = CompositeFilterOperator.or(_eq("a", 1L), _eq("a", 2L));
+		Filter or2 = CompositeFilterOperator.or(_eq("a", 2L), _eq("a", 1L));
+		Filter and = CompositeFilterOperator.and(_eq("a", 1L), _eq("a", 2L));
+		assertEquals(_normalize(or1), _normalize(or2));
+		assertFalse(_normalize(or1).equals(_normalize(and)));
+	}
+
+	@Test
+	public void testValueTypes() {
+		assertFalse(_normalize(_eq("a", 1L)).equals(_normalize(_eq("a", "1"))));
+		assertFalse(_normalize(_eq("a", true)).equals(_normalize(_eq("a", "true"))));
+		// Separators in values cannot make different filters look the same:
+		assertFalse(_normalize(_eq("a", "x|b"), _eq("c", "y")).equals(_normalize(_eq("a", "x"), _eq("b|c", "y"))));
+		Filter in1 = new FilterPredicate("a", FilterOperator.IN, Arrays.asList(1L, 2L));
+		Filter in2 = new FilterPredicate("a", FilterOperator.IN, Arrays.asList(1L, 2L, 3L));
+		assertFalse(_normalize(in1).equals(_normalize(in2)));
+	}
+
+	@Test
+	public void testDates() {
+		// Filter.toString only shows seconds:
+		Date d = new Date(1000000L);
+		assertFalse(_normalize(_eq("a", d)).equals(_normalize(_eq("a", new Date(d.getTime()+1)))));
+		assertEquals(_normalize(_eq("a", d)), _normalize(_eq("a", new Date(d.getTime()))));
+	}
+
+	@Test
+	public void testSortsLimitAndPosition() {
+		List<Filter> filters = Arrays.<Filter>asList(_eq("a", 1L));
+		List<SortPredicate> asc = Arrays.asList(new SortPredicate("b", SortDirection.ASCENDING));
+		List<SortPredicate> desc = Arrays.asList(new SortPredicate("b", SortDirection.DESCENDING));
+		String base = CachedQuery.normalize(_searches, filters, asc, 10, null);
+		assertFalse(base.equals(CachedQuery.normalize(_searches, filters, desc, 10, null)));
+		assertFalse(base.equals(CachedQuery.normalize(_searches, filters, _NO_SORTS, 10, null)));
+		assertFalse(base.equals(CachedQuery.normalize(_searches, filters, asc, 20, null)));
+		assertFalse(base.equals(CachedQuery.normalize(_searches, filters, asc, 10, "abc")));
+	}
+}
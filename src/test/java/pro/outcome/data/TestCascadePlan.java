@@ -0,0 +1,218 @@
+package pro.outcome.data;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import pro.outcome.data.Property.Constraint;
+import pro.outcome.data.Property.OnDelete;
+import pro.outcome.test.TestServices;
+import static pro.outcome.util.Shortcuts.*;
+
+
+public class TestCascadePlan {
+
+	public static void main(String[] args) throws Exception {
+		setUpClass();
+		TestCascadePlan test = new TestCascadePlan();
+		test.setUp(); test.testCascade(); test.tearDown();
+		test.setUp(); test.testSetNull(); test.tearDown();
+		test.setUp(); test.testRestrict(); test.tearDown();
+		println("All done.");
+	}
+
+	public static class Folder extends Instance<Folders> {
+		public Folder() {}
+		public Folder(String name) { setValue(getEntity().name, name); }
+		public String getDescription() { return getValue(getEntity().name); }
+	}
+
+	public static class Folders extends Entity<Folder> {
+		public final Property<String> name;
+		public Folders() {
+			name = addProperty(String.class, "name", true);
+		}
+		public Property<?>[] getNaturalKeyProperties() { return null; }
+	}
+
+	// Deleted with their folder:
+	public static class Document extends Instance<Documents> {
+		public Document() {}
+		public Document(Folder folder, String title) { setValue(getEntity().folder, folder); setValue(getEntity().title, title); }
+		public String getDescription() { return getValue(getEntity().title); }
+	}
+
+	public static class Documents extends Entity<Document> {
+		public final Property<Folder> folder;
+		public final Property<String> title;
+		public Documents() {
+			folder = addProperty(Folder.class, "folder", OnDelete.CASCADE, Constraint.MANDATORY);
+			title = addProperty(String.class, "title", true);
+		}
+		public Property<?>[] getNaturalKeyProperties() { return null; }
+	}
+
+	// Deleted with their document, and so with their document's folder:
+	public static class Remark extends Instance<Remarks> {
+		public Remark() {}
+		public Remark(Document document) { setValue(getEntity().document, document); }
+		public String getDescription() { return "remark"; }
+	}
+
+	public static class Remarks extends Entity<Remark> {
+		public final Property<Document> document;
+		public Remarks() {
+			document = addProperty(Document.class, "document", OnDelete.CASCADE, Constraint.MANDATORY);
+		}
+		public Property<?>[] getNaturalKeyProperties() { return null; }
+	}
+
+	// Kept when their folder is deleted:
+	public static class Bookmark extends Instance<Bookmarks> {
+		public Bookmark() {}
+		public Bookmark(Folder folder, String url) { setValue(getEntity().folder, folder); setValue(getEntity().url, url); }
+		public Folder getFolder() { return getValue(getEntity().folder); }
+		public Long getVersion() { return getValue(getEntity().version); }
+		public String getDescription() { return getValue(getEntity().url); }
+	}
+
+	public static class Bookmarks extends Entity<Bookmark> {
+		public final Property<Folder> folder;
+		public final Property<String> url;
+		public final Property<Long> version;
+		public Bookmarks() {
+			folder = addProperty(Folder.class, "folder", OnDelete.SET_NULL);
+			url = addProperty(String.class, "url", true, Constraint.UNIQUE);
+			version = addVersionProperty();
+		}
+		public Property<?>[] getNaturalKeyProperties() { return new Property<?>[] { url }; }
+	}
+
+	// Projects cannot be deleted while they have tasks:
+	public static class Project extends Instance<Projects> {
+		public Project() {}
+		public Project(String name) { setValue(getEntity().name, name); }
+		public String getDescription() { return getValue(getEntity().name); }
+	}
+
+	public static class Projects extends Entity<Project> {
+		public final Property<String> name;
+		public Projects() {
+			name = addProperty(String.class, "name", true);
+		}
+		public Property<?>[] getNaturalKeyProperties() { return null; }
+	}
+
+	public static class Task extends Instance<Tasks> {
+		public Task() {}
+		public Task(Project project) { setValue(getEntity().project, project); }
+		public String getDescription() { return "task"; }
+	}
+
+	public static class Tasks extends Entity<Task> {
+		public final Property<Project> project;
+		public Tasks() {
+			project = addProperty(Project.class, "project", OnDelete.RESTRICT, Constraint.MANDATORY);
+		}
+		public Property<?>[] getNaturalKeyProperties() { return null; }
+	}
+
+	private static Folders _folders;
+	private static Documents _documents;
+	private static Remarks _remarks;
+	private static Bookmarks _bookmarks;
+	private static Projects _projects;
+	private static Tasks _tasks;
+
+	@BeforeClass
+	public static void setUpClass() {
+		if(_folders == null) {
+			_folders = new Folders();
+			_documents = new Documents();
+			_remarks = new Remarks();
+			_bookmarks = new Bookmarks();
+			_projects = new Projects();
+			_tasks = new Tasks();
+			Entities.load();
+		}
+	}
+
+	// INSTANCE:
+	private final LocalServiceTestHelper _services = TestServices.create();
+
+	@Before
+	public void setUp() {
+		_services.setUp();
+	}
+
+	@After
+	public void tearDown() {
+		_services.tearDown();
+	}
+
+	@Test
+	public void testCascade() {
+		Folder folder = new Folder("deleted");
+		Folder other = new Folder("kept");
+		_folders.insert(folder);
+		_folders.insert(other);
+		Document d1 = new Document(folder, "one");
+		Document d2 = new Document(folder, "two");
+		Document d3 = new Document(other, "three");
+		_documents.insert(d1);
+		_documents.insert(d2);
+		_documents.insert(d3);
+		Remark r1 = new Remark(d1);
+		Remark r3 = new Remark(d3);
+		_remarks.insert(r1);
+		_remarks.insert(r3);
+		_folders.delete(folder);
+		assertNull(_folders.find(folder.getId()));
+		assertNull(_documents.find(d1.getId()));
+		assertNull(_documents.find(d2.getId()));
+		assertNull(_remarks.find(r1.getId()));
+		// Rows related to other folders are untouched:
+		assertNotNull(_folders.find(other.getId()));
+		assertNotNull(_documents.find(d3.getId()));
+		assertNotNull(_remarks.find(r3.getId()));
+	}
+
+	@Test
+	public void testSetNull() {
+		Folder folder = new Folder("deleted");
+		_folders.insert(folder);
+		Bookmark b = new Bookmark(folder, "http://x/1");
+		_bookmarks.insert(b);
+		_folders.delete(folder);
+		Bookmark loaded = _bookmarks.find(b.getId());
+		assertNotNull(loaded);
+		assertNull(loaded.getFolder());
+		// Cleared rows are written through the regular update path:
+		assertEquals(Long.valueOf(2), loaded.getVersion());
+		try {
+			_bookmarks.insert(new Bookmark(null, "http://x/1"));
+			fail("unique value of a cleared row was released");
+		}
+		catch(UniqueConstraintException uce) {}
+	}
+
+	@Test
+	public void testRestrict() {
+		Project project = new Project("busy");
+		_projects.insert(project);
+		Task task = new Task(project);
+		_tasks.insert(task);
+		try {
+			_projects.delete(project);
+			fail("project with tasks was deleted");
+		}
+		catch(RuntimeException re) {}
+		assertNotNull(_projects.find(project.getId()));
+		assertNotNull(_tasks.find(task.getId()));
+		// Once the tasks are gone, the project can be deleted:
+		_tasks.delete(task);
+		_projects.delete(project);
+		assertNull(_projects.find(project.getId()));
+	}
+}
@@ -0,0 +1,143 @@
+package pro.outcome.data;
+import java.util.BitSet;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import com.google.appengine.api.datastore.KeyFactory;
+import pro.outcome.data.Property.Constraint;
+import pro.outcome.test.TestEnvironment;
+import static pro.outcome.util.Shortcuts.*;
+
+
+public class TestInstance {
+
+	public static void main(String[] args) throws Exception {
+		setUpClass();
+		TestInstance test = new TestInstance();
+		test.testNewInstance();
+		test.testSetToCurrentValue();
+		test.testFlushUpdates();
+		test.testUpdateFrom();
+		test.testReadOnly();
+		println("All done.");
+	}
+
+	public static class Widget extends Instance<Widgets> {
+		public Widget() {}
+		public String getDescription() { return getValue(getEntity().name); }
+	}
+
+	public static class Widgets extends Entity<Widget> {
+		public final Property<String> name;
+		public final Property<Long> size;
+		public final Property<String> code;
+		public Widgets() {
+			name = addProperty(String.class, "name", true);
+			size = addProperty(Long.class, "size", false);
+			code = addProperty(String.class, "code", true, Constraint.READ_ONLY);
+		}
+		public Property<?>[] getNaturalKeyProperties() { return null; }
+	}
+
+	private static Widgets _widgets;
+
+	@BeforeClass
+	public static void setUpClass() {
+		TestEnvironment.install();
+		if(_widgets == null) {
+			_widgets = new Widgets();
+			Entities.load();
+		}
+	}
+
+	// Returns a widget as if it had been retrieved from the datastore:
+	private static Widget _retrieved(String name, Long size) {
+		com.google.appengine.api.datastore.Entity row = new com.google.appengine.api.datastore.Entity(KeyFactory.createKey(_widgets.getName(), 1L));
+		row.setProperty(_widgets.name.getName(), name);
+		row.setUnindexedProperty(_widgets.size.getName(), size);
+		return Instance.newFrom(Widget.class, row);
+	}
+
+	private static BitSet _ordinals(Property<?> ... props) {
+		BitSet ordinals = new BitSet();
+		for(Property<?> prop : props) {
+			ordinals.set(prop.getOrdinal());
+		}
+		return ordinals;
+	}
+
+	// INSTANCE:
+	@Test
+	public void testNewInstance() {
+		Widget w = new Widget();
+		assertFalse(w.hasUpdates());
+		assertFalse(w.hasUpdates(_ordinals(_widgets.name)));
+		w.setValue(_widgets.name, "a");
+		assertTrue(w.hasUpdates());
+		assertTrue(w.hasUpdates(_ordinals(_widgets.name)));
+		assertTrue(w.hasUpdates(_ordinals(_widgets.size, _widgets.name)));
+		assertFalse(w.hasUpdates(_ordinals(_widgets.size)));
+		assertTrue(w.isUpdated(_widgets.name));
+		assertFalse(w.isUpdated(_widgets.size));
+		assertEquals("a", w.getValue(_widgets.name));
+	}
+
+	@Test
+	public void testSetToCurrentValue() {
+		Widget w = _retrieved("a", 1L);
+		w.setValue(_widgets.name, "a");
+		assertFalse(w.hasUpdates());
+		w.setValue(_widgets.size, 2L);
+		assertTrue(w.isUpdated(_widgets.size));
+		// Setting the value back clears the update:
+		w.setValue(_widgets.size, 1L);
+		assertFalse(w.hasUpdates());
+		// Including NULL values, for properties that are not set:
+		Widget n = new Widget();
+		n.setValue(_widgets.size, null);
+		assertFalse(n.hasUpdates());
+		w.setValue(_widgets.name, null);
+		assertTrue(w.isUpdated(_widgets.name));
+		assertNull(w.getValue(_widgets.name));
+	}
+
+	@Test
+	public void testFlushUpdates() {
+		Widget w = _retrieved("a", 1L);
+		w.setValue(_widgets.name, "b");
+		w.setValue(_widgets.size, 2L);
+		w.flushUpdates();
+		assertFalse(w.hasUpdates());
+		assertEquals("b", w.getGoogleEntity().getProperty(_widgets.name.getName()));
+		assertEquals(2L, w.getGoogleEntity().getProperty(_widgets.size.getName()));
+		assertTrue(w.getGoogleEntity().isUnindexedProperty(_widgets.size.getName()));
+		assertEquals("b", w.getValue(_widgets.name));
+	}
+
+	@Test
+	public void testUpdateFrom() {
+		Widget w = _retrieved("a", 1L);
+		Widget source = new Widget();
+		source.setValue(_widgets.name, "a");
+		source.setValue(_widgets.size, 5L);
+		w.updateFrom(source);
+		// Values that match the retrieved ones are not updates:
+		assertFalse(w.isUpdated(_widgets.name));
+		assertTrue(w.isUpdated(_widgets.size));
+		assertEquals(Long.valueOf(5), w.getValue(_widgets.size));
+		w.updateFrom(new Widget());
+		assertFalse(w.hasUpdates());
+	}
+
+	@Test
+	public void testReadOnly() {
+		Widget w = new Widget();
+		w.setValue(_widgets.code, "c");
+		assertTrue(w.isUpdated(_widgets.code));
+		try {
+			_retrieved("a", 1L).setValue(_widgets.code, "c");
+			fail("read-only property was updated");
+		}
+		catch(ReadOnlyConstraintException roce) {}
+	}
+}
@@ -0,0 +1,42 @@
+package pro.outcome.data;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static pro.outcome.util.Shortcuts.*;
+
+
+public class TestNaturalKeyIds {
+
+	public static void main(String[] args) throws Exception {
+		TestNaturalKeyIds test = new TestNaturalKeyIds();
+		test.testHighBitHashes();
+		test.testLowBitHashes();
+		test.testZeroHash();
+		test.testTuplesDoNotCollide();
+		println("All done.");
+	}
+
+	// INSTANCE:
+	@Test
+	public void testHighBitHashes() {
+		assertEquals(0x3aae1fbf658166bfL, Entity.toNaturalKeyId("baae1fbf658166bf0123456789abcdef01234567"));
+		assertEquals(Long.MAX_VALUE, Entity.toNaturalKeyId("ffffffffffffffff0123456789abcdef01234567"));
+		assertEquals(1L, Entity.toNaturalKeyId("8000000000000000ffffffffffffffffffffffff"));
+	}
+
+	@Test
+	public void testLowBitHashes() {
+		assertEquals(0x1234567890abcdefL, Entity.toNaturalKeyId("1234567890abcdef0123456789abcdef01234567"));
+	}
+
+	@Test
+	public void testZeroHash() {
+		assertEquals(1L, Entity.toNaturalKeyId("0000000000000000ffffffffffffffffffffffff"));
+	}
+
+	@Test
+	public void testTuplesDoNotCollide() {
+		assertFalse(UniqueIndex.encode("Person", "x|b=Sy", "z").equals(UniqueIndex.encode("Person", "x", "y|b=Sz")));
+		assertFalse(UniqueIndex.encode("Person", "1").equals(UniqueIndex.encode("Person", 1L)));
+		assertEquals(UniqueIndex.encode("Person", 1), UniqueIndex.encode("Person", 1L));
+	}
+}
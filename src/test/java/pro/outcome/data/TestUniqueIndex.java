@@ -0,0 +1,161 @@
+package pro.outcome.data;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import pro.outcome.data.Property.Constraint;
+import pro.outcome.test.TestServices;
+import static pro.outcome.util.Shortcuts.*;
+
+
+public class TestUniqueIndex {
+
+	public static void main(String[] args) throws Exception {
+		setUpClass();
+		TestUniqueIndex test = new TestUniqueIndex();
+		test.setUp(); test.testDuplicateInsert(); test.tearDown();
+		test.setUp(); test.testDuplicateInBatch(); test.tearDown();
+		test.setUp(); test.testUpdateReleasesValue(); test.tearDown();
+		test.setUp(); test.testDeleteReleasesValue(); test.tearDown();
+		test.setUp(); test.testReclaimAfterDeleteWhere(); test.tearDown();
+		test.setUp(); test.testRowsWithoutSentinels(); test.tearDown();
+		println("All done.");
+	}
+
+	public static class Account extends Instance<Accounts> {
+		public Account() {}
+		public Account(String email) { setEmail(email); }
+		public String getEmail() { return getValue(getEntity().email); }
+		public Account setEmail(String email) { setValue(getEntity().email, email); return this; }
+		public String getDescription() { return getEmail(); }
+	}
+
+	public static class Accounts extends Entity<Account> {
+		public final Property<String> email;
+		public Accounts() {
+			email = addProperty(String.class, "email", true, Constraint.UNIQUE);
+		}
+		public Property<?>[] getNaturalKeyProperties() { return new Property<?>[] { email }; }
+	}
+
+	// Kept apart from Accounts, since the unique index remembers that it has been rebuilt:
+	public static class Handle extends Instance<Handles> {
+		public Handle() {}
+		public Handle(String name) { setValue(getEntity().name, name); }
+		public String getName() { return getValue(getEntity().name); }
+		public String getDescription() { return getName(); }
+	}
+
+	public static class Handles extends Entity<Handle> {
+		public final Property<String> name;
+		public Handles() {
+			name = addProperty(String.class, "name", true, Constraint.UNIQUE);
+		}
+		public Property<?>[] getNaturalKeyProperties() { return new Property<?>[] { name }; }
+	}
+
+	private static Accounts _accounts;
+	private static Handles _handles;
+
+	@BeforeClass
+	public static void setUpClass() {
+		if(_accounts == null) {
+			_accounts = new Accounts();
+			_handles = new Handles();
+			Entities.load();
+		}
+	}
+
+	// INSTANCE:
+	private final LocalServiceTestHelper _services = TestServices.create();
+
+	@Before
+	public void setUp() {
+		_services.setUp();
+	}
+
+	@After
+	public void tearDown() {
+		_services.tearDown();
+	}
+
+	@Test
+	public void testDuplicateInsert() {
+		_accounts.insert(new Account("a@x"));
+		try {
+			_accounts.insert(new Account("a@x"));
+			fail("duplicate value was accepted");
+		}
+		catch(UniqueConstraintException uce) {}
+		assertEquals(1, _accounts.findAll().list().size());
+	}
+
+	@Test
+	public void testDuplicateInBatch() {
+		try {
+			_accounts.insertAll(Arrays.asList(new Account("b@x"), new Account("c@x"), new Account("b@x")));
+			fail("duplicate value was accepted");
+		}
+		catch(UniqueConstraintException uce) {}
+		// The whole batch is rejected, and its values can still be used:
+		assertTrue(_accounts.findAll().list().isEmpty());
+		_accounts.insert(new Account("c@x"));
+	}
+
+	@Test
+	public void testUpdateReleasesValue() {
+		Account a = new Account("d@x");
+		_accounts.insert(a);
+		a.setEmail("e@x");
+		assertTrue(_accounts.update(a));
+		_accounts.insert(new Account("d@x"));
+		try {
+			_accounts.insert(new Account("e@x"));
+			fail("duplicate value was accepted");
+		}
+		catch(UniqueConstraintException uce) {}
+	}
+
+	@Test
+	public void testDeleteReleasesValue() {
+		Account a = new Account("f@x");
+		_accounts.insert(a);
+		_accounts.delete(a);
+		_accounts.insert(new Account("f@x"));
+	}
+
+	@Test
+	public void testReclaimAfterDeleteWhere() {
+		_accounts.insert(new Account("g@x"));
+		// Bulk deletes leave their sentinels behind:
+		_accounts.deleteWhere(_accounts.email.isEqualTo("g@x"));
+		assertNull(_accounts.findByNaturalKey("g@x"));
+		Account a = new Account("g@x");
+		_accounts.insert(a);
+		assertEquals(a.getId(), _accounts.findByNaturalKey("g@x").getId());
+	}
+
+	@Test
+	public void testRowsWithoutSentinels() {
+		// A row persisted before the unique index existed:
+		com.google.appengine.api.datastore.Entity row = new com.google.appengine.api.datastore.Entity(_handles.getName());
+		row.setProperty(_handles.name.getName(), "legacy");
+		DatastoreServiceFactory.getDatastoreService().put(row);
+		try {
+			_handles.insert(new Handle("legacy"));
+			fail("duplicate of a row without sentinel was accepted");
+		}
+		catch(UniqueConstraintException uce) {}
+		_handles.rebuildUniqueIndex();
+		try {
+			_handles.insert(new Handle("legacy"));
+			fail("duplicate of a rebuilt row was accepted");
+		}
+		catch(UniqueConstraintException uce) {}
+		_handles.insert(new Handle("other"));
+	}
+}
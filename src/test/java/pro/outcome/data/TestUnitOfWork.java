@@ -0,0 +1,164 @@
+package pro.outcome.data;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import pro.outcome.data.Property.Constraint;
+import pro.outcome.test.TestServices;
+import static pro.outcome.util.Shortcuts.*;
+
+
+public class TestUnitOfWork {
+
+	public static void main(String[] args) throws Exception {
+		setUpClass();
+		TestUnitOfWork test = new TestUnitOfWork();
+		test.setUp(); test.testCoalescing(); test.tearDown();
+		test.setUp(); test.testDiscard(); test.tearDown();
+		test.setUp(); test.testDeferredDelete(); test.tearDown();
+		test.setUp(); test.testInsertReusesDeletedValue(); test.tearDown();
+		test.setUp(); test.testConflictsSurfaceOnCommit(); test.tearDown();
+		println("All done.");
+	}
+
+	public static class Note extends Instance<Notes> {
+		public Note() {}
+		public Note(String slug, String text) { setSlug(slug); setText(text); }
+		public String getSlug() { return getValue(getEntity().slug); }
+		public Note setSlug(String slug) { setValue(getEntity().slug, slug); return this; }
+		public String getText() { return getValue(getEntity().text); }
+		public Note setText(String text) { setValue(getEntity().text, text); return this; }
+		public Long getVersion() { return getValue(getEntity().version); }
+		public String getDescription() { return getSlug(); }
+	}
+
+	public static class Notes extends Entity<Note> {
+		public final Property<String> slug;
+		public final Property<String> text;
+		public final Property<Long> version;
+		public Notes() {
+			slug = addProperty(String.class, "slug", true, Constraint.UNIQUE);
+			text = addProperty(String.class, "text", false);
+			version = addVersionProperty();
+		}
+		public Property<?>[] getNaturalKeyProperties() { return new Property<?>[] { slug }; }
+	}
+
+	private static Notes _notes;
+
+	@BeforeClass
+	public static void setUpClass() {
+		if(_notes == null) {
+			_notes = new Notes();
+			Entities.load();
+		}
+	}
+
+	// INSTANCE:
+	private final LocalServiceTestHelper _services = TestServices.create();
+
+	@Before
+	public void setUp() {
+		_services.setUp();
+	}
+
+	@After
+	public void tearDown() {
+		// Failed tests can leave a unit of work or identity map behind:
+		if(UnitOfWork.isActive()) {
+			UnitOfWork.discard();
+		}
+		while(IdentityMap.isOpen()) {
+			IdentityMap.close();
+		}
+		_services.tearDown();
+	}
+
+	@Test
+	public void testCoalescing() {
+		Note n = new Note("coalesce", "v1");
+		_notes.insert(n);
+		UnitOfWork.begin(false);
+		n.setText("v2");
+		assertTrue(_notes.update(n));
+		n.setText("v3");
+		assertTrue(_notes.update(n));
+		// Nothing is written until commit:
+		assertEquals("v1", _notes.find(n.getId()).getText());
+		UnitOfWork.commit();
+		Note loaded = _notes.find(n.getId());
+		assertEquals("v3", loaded.getText());
+		// Both updates were written once:
+		assertEquals(Long.valueOf(2), loaded.getVersion());
+	}
+
+	@Test
+	public void testDiscard() {
+		Note n = new Note("discard", "v1");
+		_notes.insert(n);
+		UnitOfWork.begin(false);
+		n.setText("v2");
+		_notes.update(n);
+		UnitOfWork.discard();
+		assertFalse(UnitOfWork.isActive());
+		assertEquals("v1", _notes.find(n.getId()).getText());
+		// The instance keeps its pending updates:
+		assertTrue(n.hasUpdates());
+	}
+
+	@Test
+	public void testDeferredDelete() {
+		Note n = new Note("delete", "v1");
+		_notes.insert(n);
+		IdentityMap.open();
+		try {
+			Note loaded = _notes.find(n.getId());
+			UnitOfWork.begin(false);
+			_notes.delete(loaded);
+			// Pending deletes are no longer found by id:
+			assertNull(_notes.find(n.getId()));
+			UnitOfWork.discard();
+			assertSame(loaded, _notes.find(n.getId()));
+			UnitOfWork.begin(false);
+			_notes.delete(loaded);
+			UnitOfWork.commit();
+		}
+		finally {
+			IdentityMap.close();
+		}
+		assertNull(_notes.find(n.getId()));
+	}
+
+	@Test
+	public void testInsertReusesDeletedValue() {
+		Note n = new Note("reused", "old");
+		_notes.insert(n);
+		UnitOfWork.begin(false);
+		_notes.delete(n);
+		Note replacement = new Note("reused", "new");
+		_notes.insert(replacement);
+		UnitOfWork.commit();
+		assertNull(_notes.find(n.getId()));
+		assertEquals(replacement.getId(), _notes.findByNaturalKey("reused").getId());
+	}
+
+	@Test
+	public void testConflictsSurfaceOnCommit() {
+		Note n1 = new Note("first", "v1");
+		Note n2 = new Note("second", "v1");
+		_notes.insert(n1);
+		_notes.insert(n2);
+		UnitOfWork.begin(false);
+		n2.setSlug("first");
+		assertTrue(_notes.update(n2));
+		try {
+			UnitOfWork.commit();
+			fail("duplicate value was accepted");
+		}
+		catch(UniqueConstraintException uce) {}
+		assertFalse(UnitOfWork.isActive());
+		assertEquals("second", _notes.find(n2.getId()).getSlug());
+	}
+}
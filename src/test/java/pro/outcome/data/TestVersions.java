@@ -0,0 +1,131 @@
+package pro.outcome.data;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import pro.outcome.data.Property.Constraint;
+import pro.outcome.test.TestServices;
+import static pro.outcome.util.Shortcuts.*;
+
+
+public class TestVersions {
+
+	public static void main(String[] args) throws Exception {
+		setUpClass();
+		TestVersions test = new TestVersions();
+		test.setUp(); test.testSaveAll(); test.tearDown();
+		test.setUp(); test.testSaveAllWithStaleInstance(); test.tearDown();
+		test.setUp(); test.testUpdateInTransactionWithStaleInstance(); test.tearDown();
+		test.setUp(); test.testSaveInTransaction(); test.tearDown();
+		println("All done.");
+	}
+
+	public static class Product extends Instance<Products> {
+		public Product() {}
+		public Product(String country, String sku, long price) {
+			setValue(getEntity().country, country);
+			setValue(getEntity().sku, sku);
+			setPrice(price);
+		}
+		public Long getPrice() { return getValue(getEntity().price); }
+		public Product setPrice(long price) { setValue(getEntity().price, price); return this; }
+		public Long getVersion() { return getValue(getEntity().version); }
+		public String getDescription() { return getValue(getEntity().country) + "/" + getValue(getEntity().sku); }
+	}
+
+	public static class Products extends Entity<Product> {
+		public final Property<String> country;
+		public final Property<String> sku;
+		public final Property<Long> price;
+		public final Property<Long> version;
+		public Products() {
+			country = addProperty(String.class, "country", true, Constraint.MANDATORY, Constraint.READ_ONLY);
+			sku = addProperty(String.class, "sku", true, Constraint.MANDATORY, Constraint.READ_ONLY);
+			price = addProperty(Long.class, "price", false);
+			version = addVersionProperty();
+		}
+		public Property<?>[] getNaturalKeyProperties() { return new Property<?>[] { country, sku }; }
+	}
+
+	private static Products _products;
+
+	@BeforeClass
+	public static void setUpClass() {
+		if(_products == null) {
+			_products = new Products();
+			Entities.load();
+		}
+	}
+
+	// INSTANCE:
+	private final LocalServiceTestHelper _services = TestServices.create();
+
+	@Before
+	public void setUp() {
+		_services.setUp();
+	}
+
+	@After
+	public void tearDown() {
+		_services.tearDown();
+	}
+
+	@Test
+	public void testSaveAll() {
+		assertEquals(2, _products.saveAll(Arrays.asList(new Product("uk", "a", 1), new Product("uk", "b", 2))));
+		// Tuples only match on all their values:
+		assertEquals(2, _products.saveAll(Arrays.asList(new Product("uk", "a", 3), new Product("fr", "a", 4))));
+		assertEquals(3, _products.findAll().list().size());
+		Product ukA = _products.findByNaturalKey("uk", "a");
+		assertEquals(Long.valueOf(3), ukA.getPrice());
+		assertEquals(Long.valueOf(2), ukA.getVersion());
+		assertEquals(Long.valueOf(1), _products.findByNaturalKey("uk", "b").getVersion());
+		assertEquals(Long.valueOf(1), _products.findByNaturalKey("fr", "a").getVersion());
+	}
+
+	@Test
+	public void testSaveAllWithStaleInstance() {
+		Product p = new Product("uk", "c", 1);
+		_products.insert(p);
+		Product stale = _products.find(p.getId());
+		p.setPrice(2);
+		_products.update(p);
+		// Matched rows are read again, so versions keep increasing:
+		stale.setPrice(3);
+		assertEquals(1, _products.saveAll(Arrays.asList(stale)));
+		Product loaded = _products.find(p.getId());
+		assertEquals(Long.valueOf(3), loaded.getPrice());
+		assertEquals(Long.valueOf(3), loaded.getVersion());
+	}
+
+	@Test
+	public void testUpdateInTransactionWithStaleInstance() {
+		Product p = new Product("uk", "d", 1);
+		_products.insert(p);
+		Product stale = _products.find(p.getId());
+		p.setPrice(2);
+		assertTrue(_products.updateInTransaction(p));
+		stale.setPrice(3);
+		try {
+			_products.updateInTransaction(stale);
+			fail("stale instance was updated");
+		}
+		catch(StaleInstanceException sie) {
+			// Thrown as is, rather than wrapped as a concurrent update:
+			assertTrue(sie.getMessage(), sie.getMessage().contains("has version 2, expected 1"));
+		}
+		assertEquals(Long.valueOf(2), _products.find(p.getId()).getPrice());
+	}
+
+	@Test
+	public void testSaveInTransaction() {
+		assertTrue(_products.saveInTransaction(new Product("uk", "e", 1)));
+		assertTrue(_products.saveInTransaction(new Product("uk", "e", 2)));
+		Product loaded = _products.findByNaturalKey("uk", "e");
+		assertEquals(Long.valueOf(2), loaded.getPrice());
+		assertEquals(Long.valueOf(2), loaded.getVersion());
+	}
+}
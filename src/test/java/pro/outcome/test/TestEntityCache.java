@@ -0,0 +1,108 @@
+package pro.outcome.test;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import pro.outcome.data.LruEntityCache;
+import static pro.outcome.util.Shortcuts.*;
+
+
+public class TestEntityCache {
+
+	@BeforeClass
+	public static void setUp() {
+		TestEnvironment.install();
+	}
+
+	public static void main(String[] args) throws Exception {
+		setUp();
+		TestEntityCache test = new TestEntityCache();
+		test.testLruHitsAndMisses();
+		test.testLruEviction();
+		test.testLruReturnsCopies();
+		test.testLruLoadDoesNotOverwriteWrites();
+		println("All done.");
+	}
+
+	// INSTANCE:
+	@Test
+	public void testLruHitsAndMisses() {
+		LruEntityCache cache = new LruEntityCache(10);
+		Key found = KeyFactory.createKey("Person", 1L);
+		Key missing = KeyFactory.createKey("Person", 2L);
+		Key unknown = KeyFactory.createKey("Person", 3L);
+		Entity e = new Entity(found);
+		e.setProperty("name", "Lisa");
+		cache.put(found, e);
+		cache.put(missing, null);
+		Map<Key,Entity> result = cache.getAll(Arrays.asList(found, missing, unknown));
+		assertEquals("Lisa", result.get(found).getProperty("name"));
+		assertTrue(result.containsKey(missing));
+		assertNull(result.get(missing));
+		assertFalse(result.containsKey(unknown));
+		cache.removeAll(Arrays.asList(found));
+		assertTrue(cache.getAll(Arrays.asList(found)).isEmpty());
+	}
+
+	@Test
+	public void testLruEviction() {
+		LruEntityCache cache = new LruEntityCache(2);
+		Key k1 = KeyFactory.createKey("Person", 1L);
+		Key k2 = KeyFactory.createKey("Person", 2L);
+		Key k3 = KeyFactory.createKey("Person", 3L);
+		cache.put(k1, new Entity(k1));
+		cache.put(k2, new Entity(k2));
+		// Touch k1 so that k2 becomes the eldest entry:
+		cache.getAll(Arrays.asList(k1));
+		cache.put(k3, new Entity(k3));
+		assertEquals(2, cache.size());
+		assertTrue(cache.getAll(Arrays.asList(k1)).containsKey(k1));
+		assertFalse(cache.getAll(Arrays.asList(k2)).containsKey(k2));
+	}
+
+	@Test
+	public void testLruReturnsCopies() {
+		LruEntityCache cache = new LruEntityCache(10);
+		Key key = KeyFactory.createKey("Person", 1L);
+		Entity e = new Entity(key);
+		e.setProperty("name", "Lisa");
+		cache.put(key, e);
+		e.setProperty("name", "Bart");
+		Entity cached = cache.getAll(Arrays.asList(key)).get(key);
+		assertEquals("Lisa", cached.getProperty("name"));
+		cached.setProperty("name", "Homer");
+		assertEquals("Lisa", cache.getAll(Arrays.asList(key)).get(key).getProperty("name"));
+	}
+
+	@Test
+	public void testLruLoadDoesNotOverwriteWrites() {
+		LruEntityCache cache = new LruEntityCache(10);
+		Key updated = KeyFactory.createKey("Person", 1L);
+		Key removed = KeyFactory.createKey("Person", 2L);
+		Key loaded = KeyFactory.createKey("Person", 3L);
+		Object load = cache.startLoad(Arrays.asList(updated, removed, loaded));
+		// Keys being loaded are not cached yet:
+		assertTrue(cache.getAll(Arrays.asList(updated, removed, loaded)).isEmpty());
+		// Concurrent writes, after the loader read its (stale) values:
+		Entity fresh = new Entity(updated);
+		fresh.setProperty("name", "Lisa");
+		cache.put(updated, fresh);
+		cache.removeAll(Arrays.asList(removed));
+		Map<Key,Entity> stale = new HashMap<>();
+		for(Key key : Arrays.asList(updated, removed, loaded)) {
+			Entity e = new Entity(key);
+			e.setProperty("name", "Bart");
+			stale.put(key, e);
+		}
+		cache.finishLoad(load, stale);
+		Map<Key,Entity> result = cache.getAll(Arrays.asList(updated, removed, loaded));
+		assertEquals("Lisa", result.get(updated).getProperty("name"));
+		assertFalse(result.containsKey(removed));
+		assertEquals("Bart", result.get(loaded).getProperty("name"));
+	}
+}
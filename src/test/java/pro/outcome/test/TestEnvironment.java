@@ -0,0 +1,31 @@
+package pro.outcome.test;
+import java.util.Map;
+import java.util.HashMap;
+import com.google.apphosting.api.ApiProxy;
+
+
+// Minimal App Engine environment, so that datastore keys can be created outside a request.
+public class TestEnvironment implements ApiProxy.Environment {
+
+	// TYPE:
+	public static void install() {
+		if(ApiProxy.getCurrentEnvironment() == null) {
+			ApiProxy.setEnvironmentForCurrentThread(new TestEnvironment());
+		}
+	}
+
+	// INSTANCE:
+	private final Map<String,Object> _attributes = new HashMap<>();
+
+	public String getAppId() { return "test"; }
+	public String getModuleId() { return "default"; }
+	public String getVersionId() { return "1"; }
+	public String getEmail() { return null; }
+	public boolean isLoggedIn() { return false; }
+	public boolean isAdmin() { return false; }
+	public String getAuthDomain() { return null; }
+	@SuppressWarnings("deprecation")
+	public String getRequestNamespace() { return ""; }
+	public Map<String,Object> getAttributes() { return _attributes; }
+	public long getRemainingMillis() { return Long.MAX_VALUE; }
+}
@@ -0,0 +1,19 @@
+package pro.outcome.test;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+
+// In-memory datastore and memcache, for tests that write. Every setUp starts with empty services.
+// All jobs are applied immediately, so that queries see previous writes (as they do in production
+// after a while), and tests do not depend on timing.
+public class TestServices {
+
+	// TYPE:
+	public static LocalServiceTestHelper create() {
+		return new LocalServiceTestHelper(
+			new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy().setNoStorage(true),
+			new LocalMemcacheServiceTestConfig()
+		);
+	}
+}